@@ -53,6 +53,16 @@ public class ScapeMConstants {
     public static final double FTOL = 1.E-4;
     public static final int MAXITER = 10000;
 
+    public static final String WV_RETRIEVAL_BRENT = "BRENT";
+    public static final String WV_RETRIEVAL_TABLE = "TABLE";
+    public static final String WV_RETRIEVAL_TABLE_NEWTON = "TABLE_NEWTON";
+
+    public static final String GAP_FILL_MODE_RADIUS = "RADIUS";
+    public static final String GAP_FILL_MODE_PULL_PUSH = "PULL_PUSH";
+
+    public static final String AOT_CONVERSION_FIT = "FIT";
+    public static final String AOT_CONVERSION_TABLE = "TABLE";
+
     public static final String DEFAULT_DEM_NAME = "GETASSE30";
     public static final double VISIBILITY_NODATA_VALUE = 0.0;
 
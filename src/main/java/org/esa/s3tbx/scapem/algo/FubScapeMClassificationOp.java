@@ -19,6 +19,7 @@ package org.esa.s3tbx.scapem.algo;
 import com.bc.ceres.core.ProgressMonitor;
 import org.esa.s3tbx.idepix.operators.BasisOp;
 import org.esa.s3tbx.meris.l2auxdata.Constants;
+import org.esa.s3tbx.scapem.util.ScapeMGeometryProvider;
 import org.esa.s3tbx.scapem.util.ScapeMUtils;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.FlagCoding;
@@ -36,7 +37,6 @@ import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.util.BitSetter;
-import org.esa.snap.core.util.math.MathUtils;
 import org.esa.snap.dataio.envisat.EnvisatConstants;
 
 
@@ -59,6 +59,8 @@ public class FubScapeMClassificationOp extends Operator {
 
     public static final String REFLECTANCE_BAND_PREFIX = "reflectance_";
     public static final String IDEPIX_CLOUD_FLAGS = "cloud_classif_flags";
+    private static final String RADIANCE_BAND_PREFIX = "radiance_";
+    private static final int[] REFLECTANCE_BAND_INDICES = {1, 2, 3, 4, 5, 6, 7, 8, 9, 13};
     private static final int num_of_visible_bands = 8;
     @SourceProduct
     private Product sourceProduct;
@@ -72,8 +74,26 @@ public class FubScapeMClassificationOp extends Operator {
     @Parameter(description = "Whether or not to calculate a lake mask",
             defaultValue = "true")
     private boolean calculateLakes;
+    @Parameter(description = "Whether to keep the lake labels in memory-mapped temporary files instead of the heap. " +
+            "Limited to 536870911 labelled pixels, i.e. scene pixels divided by the square of the labelling " +
+            "block size.",
+            defaultValue = "false")
+    private boolean labelLakesOutOfCore;
+    @Parameter(description = "The block size in pixels the water fraction is aggregated to for the lake labelling, " +
+            "1 for full resolution.", defaultValue = "1", interval = "[1,64]")
+    private int lakeLabellingBlockSize;
+    @Parameter(description = "Whether to cache the water regions on disk in the SNAP auxdata " +
+            "directory under 'scape-m/lakes'. Only reprocessing a product of identical size and geolocation hits " +
+            "the cache, which then skips the labelling, but not the land/water mask. The cache is limited to 1 GB, " +
+            "the least recently used files are deleted first.",
+            defaultValue = "false")
+    private boolean useLakeCache;
+    @Parameter(description = "Whether to take the reflectances from the Rad2Refl operator, " +
+            "else only the needed radiances are converted within the classification.", defaultValue = "true")
+    private boolean useRad2Refl;
     private Product rad2reflProduct;
     private Product waterProduct;
+    private ScapeMGeometryProvider geometryProvider;
 
     @Override
     public void initialize() throws OperatorException {
@@ -98,10 +118,18 @@ public class FubScapeMClassificationOp extends Operator {
             operator.setParameter("thicknessOfCoast", thicknessOfCoast);
             operator.setParameter("minimumOceanSize", minimumOceanSize);
             operator.setParameter("calculateLakes", calculateLakes);
+            operator.setParameter("labelLakesOutOfCore", labelLakesOutOfCore);
+            operator.setParameter("lakeLabellingBlockSize", lakeLabellingBlockSize);
+            operator.setParameter("useLakeCache", useLakeCache);
             waterProduct = operator.getTargetProduct();
         }
 
-        rad2reflProduct = computeRadiance2ReflectanceProduct(sourceProduct);
+        if (useRad2Refl) {
+            rad2reflProduct = computeRadiance2ReflectanceProduct(sourceProduct);
+        }
+        if (geometryProvider == null) {
+            geometryProvider = new ScapeMGeometryProvider(sourceProduct);
+        }
         setTargetProduct(targetProduct);
     }
 
@@ -154,61 +182,92 @@ public class FubScapeMClassificationOp extends Operator {
     public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
         Rectangle rectangle = targetTile.getRectangle();
 
-        Tile[] reflectanceTiles = new Tile[num_of_visible_bands + 2];
-        for (int i = 1; i <= num_of_visible_bands + 1; i++) {
-            final Band reflBand = rad2reflProduct.getBand(REFLECTANCE_BAND_PREFIX + i);
-            reflectanceTiles[i - 1] = getSourceTile(reflBand, rectangle);
-        }
+        final double[][] cosSza = geometryProvider.getTileGeometry(rectangle).getCosSza();
+        // reflectances 1 to 9 and 13
+        final float[][] reflectances = useRad2Refl ? getRad2ReflReflectances(rectangle) :
+                computeReflectances(rectangle, cosSza);
 
-        final Band refl13Band = rad2reflProduct.getBand(REFLECTANCE_BAND_PREFIX + 13);
         final TiePointGrid altitudeGrid = sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_DEM_ALTITUDE_DS_NAME);
         final Band l1FlagsBand = sourceProduct.getBand(EnvisatConstants.MERIS_L1B_FLAGS_DS_NAME);
-        final Tile l1FlagsTile = getSourceTile(l1FlagsBand, rectangle);
-        final TiePointGrid sunZenithGrid = sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME);
-        final Tile sunZenithTile = getSourceTile(sunZenithGrid, rectangle);
-        final Tile altitudeTile = getSourceTile(altitudeGrid, rectangle);
+        final int[] l1Flags = getSourceTile(l1FlagsBand, rectangle).getSamplesInt();
+        final float[] altitudes = getSourceTile(altitudeGrid, rectangle).getSamplesFloat();
 
-        reflectanceTiles[num_of_visible_bands + 1] = getSourceTile(refl13Band, rectangle);
-        Tile waterTile = null;
+        int[] waterFlags = null;
         if (calculateLakes) {
-            waterTile = getSourceTile(waterProduct.getRasterDataNode("water_flags"), rectangle);
+            waterFlags = getSourceTile(waterProduct.getRasterDataNode("water_flags"), rectangle).getSamplesInt();
         }
 
-        for (Tile.Pos pos : targetTile) {
-            float pAvTOA = 0;
-            for (int i = 0; i < num_of_visible_bands; i++) {
-                pAvTOA += reflectanceTiles[i].getSampleFloat(pos.x, pos.y);
-            }
-            pAvTOA /= num_of_visible_bands;
-            float p1TOA = reflectanceTiles[0].getSampleFloat(pos.x, pos.y);
-            float p8TOA = reflectanceTiles[7].getSampleFloat(pos.x, pos.y);
-            float p9TOA = reflectanceTiles[8].getSampleFloat(pos.x, pos.y);
-            float p13TOA = reflectanceTiles[9].getSampleFloat(pos.x, pos.y);
-            final float altitude = altitudeTile.getSampleFloat(pos.x, pos.y);
-            final float sunZenith = sunZenithTile.getSampleFloat(pos.x, pos.y);
-            final double musil = Math.cos(sunZenith * MathUtils.DTOR);
-
-            boolean isInvalid = l1FlagsTile.getSampleBit(pos.x, pos.y, Constants.L1_F_INVALID);
-            boolean certainlyCloud = pAvTOA > 0.3 || altitude > 2500 || (p1TOA > 0.23 && p1TOA > p9TOA) || musil < 0;
-            boolean presumablyCloud = pAvTOA > 0.27 || altitude > 2500 || (p1TOA > 0.2 && p1TOA > p8TOA) || musil < 0;
-
-            int cloudFlag = 0;
-            cloudFlag = BitSetter.setFlag(cloudFlag, 0, isInvalid);
-            cloudFlag = BitSetter.setFlag(cloudFlag, 1, certainlyCloud);
-            cloudFlag = BitSetter.setFlag(cloudFlag, 2, presumablyCloud);
-
-            boolean isOcean = false;
-            boolean isLakeOrCoastline = false;
-            if (calculateLakes) {
-                isOcean = waterTile.getSampleBit(pos.x, pos.y, 1);
-                isLakeOrCoastline = (waterTile.getSampleBit(pos.x, pos.y, 0) ||
-                        waterTile.getSampleBit(pos.x, pos.y, 2)) && p13TOA < reflectance_water_threshold;
+        final int[] cloudFlags = new int[rectangle.width * rectangle.height];
+        int index = 0;
+        for (int y = 0; y < rectangle.height; y++) {
+            for (int x = 0; x < rectangle.width; x++, index++) {
+                float pAvTOA = 0;
+                for (int i = 0; i < num_of_visible_bands; i++) {
+                    pAvTOA += reflectances[i][index];
+                }
+                pAvTOA /= num_of_visible_bands;
+                float p1TOA = reflectances[0][index];
+                float p8TOA = reflectances[7][index];
+                float p9TOA = reflectances[8][index];
+                float p13TOA = reflectances[9][index];
+                final float altitude = altitudes[index];
+                final double musil = cosSza[x][y];
+
+                boolean isInvalid = ((l1Flags[index] >> Constants.L1_F_INVALID) & 1) != 0;
+                boolean certainlyCloud = pAvTOA > 0.3 || altitude > 2500 || (p1TOA > 0.23 && p1TOA > p9TOA) || musil < 0;
+                boolean presumablyCloud = pAvTOA > 0.27 || altitude > 2500 || (p1TOA > 0.2 && p1TOA > p8TOA) || musil < 0;
+
+                int cloudFlag = 0;
+                cloudFlag = BitSetter.setFlag(cloudFlag, 0, isInvalid);
+                cloudFlag = BitSetter.setFlag(cloudFlag, 1, certainlyCloud);
+                cloudFlag = BitSetter.setFlag(cloudFlag, 2, presumablyCloud);
+
+                boolean isOcean = false;
+                boolean isLakeOrCoastline = false;
+                if (calculateLakes) {
+                    final int waterFlag = waterFlags[index];
+                    isOcean = BitSetter.isFlagSet(waterFlag, 1);
+                    isLakeOrCoastline = (BitSetter.isFlagSet(waterFlag, 0) || BitSetter.isFlagSet(waterFlag, 2)) &&
+                            p13TOA < reflectance_water_threshold;
+                }
+                cloudFlag = BitSetter.setFlag(cloudFlag, 3, isOcean && !isInvalid);
+                cloudFlag = BitSetter.setFlag(cloudFlag, 4, isLakeOrCoastline && !isInvalid);
+
+                cloudFlags[index] = cloudFlag;
             }
-            cloudFlag = BitSetter.setFlag(cloudFlag, 3, isOcean && !isInvalid);
-            cloudFlag = BitSetter.setFlag(cloudFlag, 4, isLakeOrCoastline && !isInvalid);
+        }
+        targetTile.setSamples(cloudFlags);
+    }
+
+    private float[][] getRad2ReflReflectances(Rectangle rectangle) {
+        final float[][] reflectances = new float[REFLECTANCE_BAND_INDICES.length][];
+        for (int i = 0; i < REFLECTANCE_BAND_INDICES.length; i++) {
+            final Band reflBand = rad2reflProduct.getBand(REFLECTANCE_BAND_PREFIX + REFLECTANCE_BAND_INDICES[i]);
+            reflectances[i] = getSourceTile(reflBand, rectangle).getSamplesFloat();
+        }
+        return reflectances;
+    }
 
-            targetTile.setSample(pos.x, pos.y, cloudFlag);
+    // converts the needed radiances as Rad2Refl does: rho = pi * L / (E0 * cos(sza))
+    private float[][] computeReflectances(Rectangle rectangle, double[][] cosSza) {
+        final float[][] reflectances = new float[REFLECTANCE_BAND_INDICES.length][];
+        for (int i = 0; i < REFLECTANCE_BAND_INDICES.length; i++) {
+            final Band radianceBand = sourceProduct.getBand(RADIANCE_BAND_PREFIX + REFLECTANCE_BAND_INDICES[i]);
+            final float[] samples = getSourceTile(radianceBand, rectangle).getSamplesFloat();
+            final double solarFactor = Math.PI / radianceBand.getSolarFlux();
+            int index = 0;
+            for (int y = 0; y < rectangle.height; y++) {
+                for (int x = 0; x < rectangle.width; x++, index++) {
+                    samples[index] = (float) (samples[index] * solarFactor / cosSza[x][y]);
+                }
+            }
+            reflectances[i] = samples;
         }
+        return reflectances;
+    }
+
+    public void setGeometryProvider(ScapeMGeometryProvider geometryProvider) {
+        this.geometryProvider = geometryProvider;
     }
 
     /**
@@ -0,0 +1,88 @@
+package org.esa.s3tbx.scapem.algo;
+
+import java.awt.Rectangle;
+import java.util.BitSet;
+
+/**
+ * Buffer along the coastline, computed with a separable L1 distance transform.
+ * A pixel at offset (dx, dy) from a coastline pixel is in the buffer if |2 dx + 1| + 2 |dy| <= 2 t - 1, with t the
+ * buffer thickness in pixels. This is the diamond formerly stamped around each coastline pixel, i.e. rows
+ * dy in [-t, t) and columns dx in [-(t - |dy|), t - |dy|).
+ *
+ * @author agent
+ */
+class FubScapeMCoastBuffer {
+
+    private static final int INFINITE_DISTANCE = 1 << 28;
+
+    private FubScapeMCoastBuffer() {
+    }
+
+    /**
+     * Returns the window of coastline pixels needed to compute the buffer of a rectangle.
+     *
+     * @param targetRect - the rectangle to compute the buffer for
+     * @param thickness  - the buffer thickness t in pixels
+     * @param sceneRect  - the scene bounds
+     * @return the window
+     */
+    static Rectangle getCoastlineWindow(Rectangle targetRect, int thickness, Rectangle sceneRect) {
+        final int border = Math.max(thickness, 0);
+        return new Rectangle(targetRect.x - border, targetRect.y - border,
+                             targetRect.width + 2 * border, targetRect.height + 2 * border).intersection(sceneRect);
+    }
+
+    /**
+     * Computes the coastline buffer of a rectangle.
+     *
+     * @param coastline  - the coastline flags of the window, row by row
+     * @param window     - the window, must contain the target rectangle
+     * @param targetRect - the rectangle to compute the buffer for
+     * @param thickness  - the buffer thickness t in pixels
+     * @return the buffer flags of the target rectangle, row by row
+     */
+    static BitSet computeCoastBuffer(boolean[] coastline, Rectangle window, Rectangle targetRect, int thickness) {
+        final BitSet buffer = new BitSet(targetRect.width * targetRect.height);
+        final int maxDistance = 2 * thickness - 1;
+        if (maxDistance < 0) {
+            return buffer;
+        }
+        final int width = window.width;
+        final int height = window.height;
+
+        // doubled horizontal distance |2 dx + 1| to the nearest coastline pixel of the row
+        final int[] distances = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            final int rowOffset = y * width;
+            int distance = INFINITE_DISTANCE;
+            for (int x = 0; x < width; x++) {
+                distance = coastline[rowOffset + x] ? 1 : distance + 2;
+                distances[rowOffset + x] = distance;
+            }
+            distance = INFINITE_DISTANCE;
+            for (int x = width - 1; x >= 0; x--) {
+                distances[rowOffset + x] = Math.min(distances[rowOffset + x], distance);
+                distance = coastline[rowOffset + x] ? 1 : distance + 2;
+            }
+        }
+
+        // plus doubled vertical distance, only for the columns and rows of the target rectangle
+        final int firstRow = targetRect.y - window.y;
+        final int endRow = firstRow + targetRect.height;
+        for (int x = targetRect.x - window.x; x < targetRect.x - window.x + targetRect.width; x++) {
+            int distance = INFINITE_DISTANCE;
+            for (int y = 0; y < endRow; y++) {
+                distance = Math.min(distances[y * width + x], distance + 2);
+                distances[y * width + x] = distance;
+            }
+            distance = INFINITE_DISTANCE;
+            for (int y = height - 1; y >= firstRow; y--) {
+                distance = Math.min(distances[y * width + x], distance + 2);
+                if (y < endRow && distance <= maxDistance) {
+                    buffer.set((y - firstRow) * targetRect.width + x - (targetRect.x - window.x));
+                }
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,221 @@
+package org.esa.s3tbx.scapem.algo;
+
+import org.esa.snap.core.datamodel.GeoCoding;
+import org.esa.snap.core.datamodel.GeoPos;
+import org.esa.snap.core.datamodel.PixelPos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * On-disk cache of the water region classes of a scene, keyed by the geocoding footprint and the lake parameters.
+ * The water regions only depend on the static land/water mask, so they can be reused when a product with exactly
+ * the same footprint is processed again. Repeated acquisitions over the same area hardly ever share a footprint and
+ * are not served from the cache. The cache is bounded in size: after each write, the least recently used files are
+ * deleted until the cache files fit into the limit.
+ *
+ * @author agent
+ */
+class FubScapeMLakesCache {
+
+    private static final int MAGIC = 0x53434c4b;
+    private static final int HEADER_SIZE = 12;
+    private static final String FILE_PREFIX = "water-regions-";
+    private static final String FILE_SUFFIX = ".bin";
+
+    // about 30 full resolution orbits
+    static final long DEFAULT_MAX_CACHE_SIZE = 1L << 30;
+
+    private final Path cacheFile;
+    private final long maxCacheSize;
+
+    /**
+     * @param cacheDir - the cache directory, created on first write
+     * @param key      - the cache key, see {@link #createKey}
+     */
+    FubScapeMLakesCache(Path cacheDir, String key) {
+        this(cacheDir, key, DEFAULT_MAX_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheDir     - the cache directory, created on first write
+     * @param key          - the cache key, see {@link #createKey}
+     * @param maxCacheSize - the maximum size of all cache files in the directory in bytes
+     */
+    FubScapeMLakesCache(Path cacheDir, String key, long maxCacheSize) {
+        cacheFile = cacheDir.resolve(FILE_PREFIX + key + FILE_SUFFIX);
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Creates a cache key from the scene footprint, i.e. the scene size and the geo-positions of the corner and centre
+     * pixels rounded to 1e-4 degrees, and the parameters the region classes depend on.
+     *
+     * @return the hex encoded SHA-1 digest of the footprint and parameters
+     */
+    static String createKey(GeoCoding geoCoding, int width, int height, int minimumOceanSizeInPixels,
+                            int blockSize) {
+        final StringBuilder footprint = new StringBuilder();
+        footprint.append(width).append('x').append(height);
+        final double[][] pixels = {
+                {0.5, 0.5}, {width - 0.5, 0.5}, {0.5, height - 0.5}, {width - 0.5, height - 0.5},
+                {width / 2.0, height / 2.0}
+        };
+        for (double[] pixel : pixels) {
+            final GeoPos geoPos = geoCoding.getGeoPos(new PixelPos(pixel[0], pixel[1]), null);
+            footprint.append(String.format(Locale.ENGLISH, ";%.4f,%.4f", geoPos.getLat(), geoPos.getLon()));
+        }
+        footprint.append(';').append(minimumOceanSizeInPixels).append(';').append(blockSize);
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    footprint.toString().getBytes(StandardCharsets.UTF_8));
+            final StringBuilder key = new StringBuilder();
+            for (byte b : digest) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the region classes. A hit marks the cache file as recently used.
+     *
+     * @param gridWidth  - the expected width of the classified grid
+     * @param gridHeight - the expected height of the classified grid
+     * @param mapped     - whether to map the cache file instead of reading it into the heap
+     * @return the region classes, row by row, or null if not cached
+     * @throws IOException if the cache file cannot be read
+     */
+    ByteBuffer read(int gridWidth, int gridHeight, boolean mapped) throws IOException {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the complete header
+            }
+            header.flip();
+            final int size = gridWidth * gridHeight;
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != gridWidth ||
+                    header.getInt() != gridHeight || channel.size() != HEADER_SIZE + size) {
+                return null;
+            }
+            touch();
+            if (mapped) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+            }
+            final ByteBuffer regionClasses = ByteBuffer.allocate(size);
+            while (regionClasses.hasRemaining() && channel.read(regionClasses) >= 0) {
+                // read the complete grid
+            }
+            regionClasses.clear();
+            return regionClasses;
+        }
+    }
+
+    /**
+     * Writes the region classes and evicts the least recently used cache files beyond the size limit. The file is
+     * written to a temporary file first and then moved, so concurrent readers never see an incomplete file.
+     *
+     * @param regionClasses - the region classes, row by row
+     * @param gridWidth     - the width of the classified grid
+     * @param gridHeight    - the height of the classified grid
+     * @throws IOException if the cache file cannot be written
+     */
+    void write(ByteBuffer regionClasses, int gridWidth, int gridHeight) throws IOException {
+        Files.createDirectories(cacheFile.getParent());
+        final Path tempFile = Files.createTempFile(cacheFile.getParent(), "water-regions-", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(gridWidth).putInt(gridHeight).flip();
+                final ByteBuffer data = regionClasses.duplicate();
+                data.clear();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        evict();
+    }
+
+    Path getCacheFile() {
+        return cacheFile;
+    }
+
+    private void touch() {
+        try {
+            Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // the file is then evicted earlier than necessary
+        }
+    }
+
+    // deletes the least recently used files, but never the current one, until the cache fits into the limit
+    private void evict() throws IOException {
+        final List<CacheFile> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheFile.getParent(),
+                                                                     FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                try {
+                    files.add(new CacheFile(file, Files.getLastModifiedTime(file), Files.size(file)));
+                } catch (NoSuchFileException e) {
+                    // removed concurrently
+                }
+            }
+        }
+        // most recently used first
+        Collections.sort(files, new Comparator<CacheFile>() {
+            @Override
+            public int compare(CacheFile file1, CacheFile file2) {
+                return file2.lastUsed.compareTo(file1.lastUsed);
+            }
+        });
+        long cacheSize = 0;
+        for (CacheFile file : files) {
+            if (file.path.equals(cacheFile) || cacheSize + file.size <= maxCacheSize) {
+                cacheSize += file.size;
+            } else {
+                Files.deleteIfExists(file.path);
+            }
+        }
+    }
+
+    private static class CacheFile {
+
+        private final Path path;
+        private final FileTime lastUsed;
+        private final long size;
+
+        CacheFile(Path path, FileTime lastUsed, long size) {
+            this.path = path;
+            this.lastUsed = lastUsed;
+            this.size = size;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.esa.s3tbx.scapem.algo;
 
+import com.bc.ceres.core.NullProgressMonitor;
 import com.bc.ceres.core.ProgressMonitor;
 import org.esa.s3tbx.idepix.core.IdepixConstants;
 import org.esa.s3tbx.idepix.core.util.IdepixUtils;
@@ -20,18 +21,20 @@ import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.gpf.annotations.TargetProduct;
 import org.esa.snap.core.util.BitSetter;
+import org.esa.snap.core.util.SystemUtils;
 import org.esa.snap.dataio.envisat.EnvisatConstants;
 
 
 import java.awt.Color;
 import java.awt.Rectangle;
-import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressWarnings({"FieldCanBeLocal"})
 @OperatorMetadata(alias = "idepix.scapem.lakes",
@@ -56,16 +59,31 @@ public class FubScapeMLakesOp extends Operator {
     private float refl_water_threshold;
     @Parameter(description = "Whether or not to calculate a lake mask", defaultValue = "true")
     private boolean calculateLakes;
+    @Parameter(description = "Whether to keep the lake labels in memory-mapped temporary files instead of the heap. " +
+            "Limited to 536870911 labelled pixels, i.e. scene pixels divided by the square of the labelling " +
+            "block size.",
+            defaultValue = "false")
+    private boolean labelLakesOutOfCore;
+    @Parameter(description = "The block size in pixels the water fraction is aggregated to for the lake labelling, " +
+            "1 for full resolution.", defaultValue = "1", interval = "[1,64]")
+    private int lakeLabellingBlockSize;
+    @Parameter(description = "Whether to cache the water regions on disk in the SNAP auxdata " +
+            "directory under 'scape-m/lakes'. Only reprocessing a product of identical size and geolocation hits " +
+            "the cache, which then skips the labelling, but not the land/water mask. The cache is limited to 1 GB, " +
+            "the least recently used files are deleted first.",
+            defaultValue = "false")
+    private boolean useLakeCache;
     private GeoCoding geoSceneCoding;
     private Product landWaterMaskProduct;
-    private int[][] lakeRegionMatrix;
+    private FutureTask<ByteBuffer> waterRegionClassesTask;
+    private final AtomicBoolean lakeLabellingStarted = new AtomicBoolean();
+    private volatile Thread lakeLabellingThread;
     private float kmxpix;
     private int minimumOceanSizeInPixels;
-    private BufferedImage coastRegionImage;
+    private int lakeGridWidth;
+    private int lakeGridHeight;
+    private Mask coastlineMask;
     private int thicknessOfCoastInPixels;
-    private int regionCounter;
-    private Map<Integer, Integer> regionSizes;
-    private List<Region> regions;
 
     @Override
     public void initialize() throws OperatorException {
@@ -89,8 +107,6 @@ public class FubScapeMLakesOp extends Operator {
         setupCloudScreeningBitmasks(targetProduct);
 
         landWaterMaskProduct = GPF.createProduct("LandWaterMask", GPF.NO_PARAMS, sourceProduct);
-        coastRegionImage = new BufferedImage(sourceProduct.getSceneRasterWidth(),
-                sourceProduct.getSceneRasterHeight(), BufferedImage.TYPE_INT_RGB);
 
         kmxpix = 0.3f;
         if (sourceProduct.getProductType().equals(EnvisatConstants.MERIS_RR_L1B_PRODUCT_TYPE_NAME)) {
@@ -98,9 +114,19 @@ public class FubScapeMLakesOp extends Operator {
         }
         if (calculateLakes) {
             minimumOceanSizeInPixels = (int) (minimumOceanSize / kmxpix);
-            identifyLakeRegions();
+            lakeGridWidth = (sourceProduct.getSceneRasterWidth() - 1) / lakeLabellingBlockSize + 1;
+            lakeGridHeight = (sourceProduct.getSceneRasterHeight() - 1) / lakeLabellingBlockSize + 1;
+            // the water regions are labelled once a tile needs them, i.e. not at all if no water flags are computed
+            waterRegionClassesTask = new FutureTask<>(new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() throws IOException, InterruptedException {
+                    return identifyLakeRegions();
+                }
+            });
             thicknessOfCoastInPixels = (int) (thicknessOfCoast / kmxpix) / 2;
-            identifyCoastRegions();
+            // todo: how to handle products without coastlines, or if this mask
+            // is not available, e.g. in CC products it is named 'l1p_coastline'!
+            coastlineMask = sourceProduct.getMaskGroup().getByDisplayName("coastline");
         }
         setTargetProduct(targetProduct);
     }
@@ -133,118 +159,156 @@ public class FubScapeMLakesOp extends Operator {
         return flagCoding;
     }
 
-    private void identifyCoastRegions() {
-        final Mask coastlineMask = sourceProduct.getMaskGroup().getByDisplayName("coastline");
-        final Band l1FlagsBand = sourceProduct.getBand(EnvisatConstants.MERIS_L1B_FLAGS_DS_NAME);
-        for (int y = 0; y < l1FlagsBand.getRasterHeight(); y++) {
-            for (int x = 0; x < l1FlagsBand.getRasterWidth(); x++) { // todo 1 mba/** ask Marco if getSceneRasterWidth is the same as getRasterWidth
-                if (coastlineMask != null) {   // todo: how to handle products without coastlines, or if this mask
-                    // is not available, e.g. in CC products it is named 'l1p_coastline'!
-                    final int isCoastline = coastlineMask.getSampleInt(x, y);
-                    if (isCoastline != 0) {
-                        for (int i = -thicknessOfCoastInPixels; i < thicknessOfCoastInPixels; i++) {
-                            int offset = -Math.abs(i) + thicknessOfCoastInPixels;
-                            for (int j = -offset; j < offset; j++) {
-                                if (isInBounds(x + j, y + i)) {
-                                    coastRegionImage.getRaster().setSample(x + j, y + i, 0, 1);
-                                }
-                            }
-                        }
+    // starts the labelling on a dedicated thread, so that it runs concurrently with the tile computations
+    private void startLakeLabelling() {
+        if (lakeLabellingStarted.compareAndSet(false, true)) {
+            lakeLabellingThread = new Thread(waterRegionClassesTask, "SCAPE-M lake labelling");
+            lakeLabellingThread.setDaemon(true);
+            lakeLabellingThread.start();
+        }
+    }
+
+    private ByteBuffer getWaterRegionClasses() {
+        startLakeLabelling();
+        try {
+            // the labelling runs its stripes in the common pool, which compensates for workers blocked here
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    try {
+                        waterRegionClassesTask.get();
+                    } catch (ExecutionException e) {
+                        // reported below
                     }
-                } else {
-                    coastRegionImage.getRaster().setSample(x, y, 0, 0);
+                    return true;
                 }
-            }
+
+                @Override
+                public boolean isReleasable() {
+                    return waterRegionClassesTask.isDone();
+                }
+            });
+            return waterRegionClassesTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Interrupted while labelling water regions.", e);
+        } catch (ExecutionException e) {
+            throw new OperatorException("Failed to label water regions.", e.getCause());
         }
     }
 
-    private void identifyLakeRegions() {
-        regionCounter = 0;
-        regionSizes = new HashMap<>();
-        regions = new ArrayList<>();
-        lakeRegionMatrix = new int[sourceProduct.getSceneRasterWidth()][sourceProduct.getSceneRasterHeight()];
-        for (int i = 0; i < sourceProduct.getSceneRasterWidth(); i++) {
-            Arrays.fill(lakeRegionMatrix[i], 0);
+    private ByteBuffer identifyLakeRegions() throws IOException, InterruptedException {
+        FubScapeMLakesCache cache = null;
+        if (useLakeCache) {
+            cache = new FubScapeMLakesCache(SystemUtils.getAuxDataPath().resolve("scape-m").resolve("lakes"),
+                                            FubScapeMLakesCache.createKey(geoSceneCoding,
+                                                                          sourceProduct.getSceneRasterWidth(),
+                                                                          sourceProduct.getSceneRasterHeight(),
+                                                                          minimumOceanSizeInPixels,
+                                                                          lakeLabellingBlockSize));
+            try {
+                final ByteBuffer cachedRegionClasses = cache.read(lakeGridWidth, lakeGridHeight, labelLakesOutOfCore);
+                if (cachedRegionClasses != null) {
+                    SystemUtils.LOG.fine("Read water regions from cache " + cache.getCacheFile());
+                    return cachedRegionClasses;
+                }
+            } catch (IOException e) {
+                SystemUtils.LOG.warning("Cannot read water regions from cache: " + e.getMessage());
+            }
         }
+
         final Band landWaterFractionBand = landWaterMaskProduct.getBand(LAND_WATER_FRACTION);
-        for (int y = 0; y < landWaterFractionBand.getRasterHeight(); y++) {
-            for (int x = 0; x < landWaterFractionBand.getRasterWidth(); x++) {
-                if (landWaterFractionBand.getSampleFloat(x, y) >= 50.0) {
-                    checkPixel(x, y);
-                }
+        FubScapeMWaterRegions.WaterMaskSource source = new FubScapeMWaterRegions.WaterMaskSource() {
+            @Override
+            public boolean[] getWaterMask(Rectangle rect) {
+                return getWaterMaskFromFraction(landWaterFractionBand, rect);
+            }
+        };
+        if (lakeLabellingBlockSize > 1) {
+            source = FubScapeMWaterRegions.createBlockSource(source, lakeLabellingBlockSize,
+                                                             landWaterFractionBand.getRasterWidth(),
+                                                             landWaterFractionBand.getRasterHeight());
+        }
+        final FubScapeMWaterRegions waterRegions =
+                FubScapeMWaterRegions.label(lakeGridWidth, lakeGridHeight, FubScapeMWaterRegions.DEFAULT_STRIPE_HEIGHT,
+                                            source, labelLakesOutOfCore, new LoggingProgressMonitor());
+        // a region of n blocks is small if n * blockSize² < minimumOceanSizeInPixels
+        final int blockArea = lakeLabellingBlockSize * lakeLabellingBlockSize;
+        final ByteBuffer waterRegionClasses =
+                waterRegions.classifyRegions((minimumOceanSizeInPixels + blockArea - 1) / blockArea);
+        SystemUtils.LOG.fine(String.format("Labelled and classified water regions of %d x %d pixels",
+                                           waterRegions.getWidth(), waterRegions.getHeight()));
+        if (cache != null) {
+            try {
+                cache.write(waterRegionClasses, lakeGridWidth, lakeGridHeight);
+            } catch (IOException e) {
+                SystemUtils.LOG.warning("Cannot write water regions to cache: " + e.getMessage());
             }
         }
+        return waterRegionClasses;
     }
 
-    private void checkPixel(int x, int y) {
-        int leftPixelRegionID = (isInBounds(x - 1, y)) ? lakeRegionMatrix[x - 1][y] : 0;
-        int upperPixelRegionID = (isInBounds(x, y - 1)) ? lakeRegionMatrix[x][y - 1] : 0;
-
-        if (leftPixelRegionID == 0 && upperPixelRegionID == 0) {
-            int regionID = ++regionCounter;
-            lakeRegionMatrix[x][y] = regionID;
-            regionSizes.put(regionID, 1);
-            regions.add(new Region(regionID));
-        } else {
-            if (leftPixelRegionID == 0) {
-                lakeRegionMatrix[x][y] = upperPixelRegionID;
-                regionSizes.put(upperPixelRegionID, regionSizes.get(upperPixelRegionID) + 1);
-            } else if (upperPixelRegionID == 0) {
-                lakeRegionMatrix[x][y] = leftPixelRegionID;
-                regionSizes.put(leftPixelRegionID, regionSizes.get(leftPixelRegionID) + 1);
-            } else {
-                if (leftPixelRegionID == upperPixelRegionID) {
-                    lakeRegionMatrix[x][y] = leftPixelRegionID;
-                    regionSizes.put(leftPixelRegionID, regionSizes.get(leftPixelRegionID) + 1);
-                } else {
-                    lakeRegionMatrix[x][y] = upperPixelRegionID;
-                    Region firstRegion = null;
-                    Region secondRegion = null;
-                    for (Region region : regions) {
-                        if (region.isResponsibleRegionFor(upperPixelRegionID)) {
-                            firstRegion = region;
-                        }
-                        if (region.isResponsibleRegionFor(leftPixelRegionID)) {
-                            secondRegion = region;
-                        }
-                        if (firstRegion != null && secondRegion != null) {
-                            break;
-                        }
-                    }
-                    if (firstRegion != null && secondRegion != null && firstRegion != secondRegion) {
-                        firstRegion.merge(secondRegion);
-                        regions.remove(secondRegion);
-                    }
-                }
-            }
+    private static boolean[] getWaterMaskFromFraction(Band landWaterFractionBand, Rectangle rect) {
+        final float[] waterFraction = landWaterFractionBand.getSourceImage().getData(rect).
+                getSamples(rect.x, rect.y, rect.width, rect.height, 0, (float[]) null);
+        final boolean[] waterMask = new boolean[waterFraction.length];
+        for (int i = 0; i < waterFraction.length; i++) {
+            waterMask[i] = waterFraction[i] >= 50.0;
         }
+        return waterMask;
     }
 
-    private boolean isInBounds(int x, int y) {
-        return x >= 0 && y >= 0 && x < sourceProduct.getSceneRasterWidth() && y < sourceProduct.getSceneRasterHeight();
+    // the coastline buffer is computed per tile from the coastline pixels within the buffer thickness
+    private BitSet computeCoastBuffer(Rectangle rectangle) {
+        if (coastlineMask == null) {
+            return new BitSet();
+        }
+        final Rectangle sceneRect = new Rectangle(sourceProduct.getSceneRasterWidth(),
+                                                  sourceProduct.getSceneRasterHeight());
+        final Rectangle window = FubScapeMCoastBuffer.getCoastlineWindow(rectangle, thicknessOfCoastInPixels,
+                                                                         sceneRect);
+        final int[] coastlineSamples = getSourceTile(coastlineMask, window).getSamplesInt();
+        final boolean[] coastline = new boolean[coastlineSamples.length];
+        for (int i = 0; i < coastlineSamples.length; i++) {
+            coastline[i] = coastlineSamples[i] != 0;
+        }
+        return FubScapeMCoastBuffer.computeCoastBuffer(coastline, window, rectangle, thicknessOfCoastInPixels);
     }
 
     @Override
     public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
         final Rectangle rectangle = targetTile.getRectangle();
+        final int sceneWidth = sourceProduct.getSceneRasterWidth();
 
-        Raster coastRegionData = coastRegionImage.getData(rectangle);
-        Tile waterFractionTile = getSourceTile(landWaterMaskProduct.getRasterDataNode(LAND_WATER_FRACTION), rectangle);
+        if (calculateLakes) {
+            startLakeLabelling();
+        }
+        final BitSet coastBuffer = calculateLakes ? computeCoastBuffer(rectangle) : new BitSet();
+        final ByteBuffer waterRegionClasses = calculateLakes ? getWaterRegionClasses() : null;
+        // with full resolution lake labelling, the region classes already hold the water mask
+        Tile waterFractionTile = null;
+        if (!calculateLakes || lakeLabellingBlockSize > 1) {
+            waterFractionTile = getSourceTile(landWaterMaskProduct.getRasterDataNode(LAND_WATER_FRACTION), rectangle);
+        }
         for (Tile.Pos pos : targetTile) {
-            final boolean isAlongCoastline = coastRegionData.getSample(pos.x, pos.y, 0) == 1;
+            final boolean isAlongCoastline =
+                    coastBuffer.get((pos.y - rectangle.y) * rectangle.width + pos.x - rectangle.x);
             final boolean isOcean;
             boolean isLake = false;
             if (calculateLakes) {
-                int regionID = lakeRegionMatrix[pos.x][pos.y];
-                if (regionID != 0) {
-                    for (Region region : regions) {
-                        if (region.isResponsibleRegionFor(regionID)) {
-                            isLake = !region.isOfMinimalSize();
-                            break;
-                        }
-                    }
+                final byte regionClass;
+                if (lakeLabellingBlockSize == 1) {
+                    regionClass = waterRegionClasses.get(pos.y * sceneWidth + pos.x);
+                } else if (waterFractionTile.getSampleFloat(pos.x, pos.y) >= 50.0) {
+                    regionClass = FubScapeMWaterRegions.getWaterPixelClass(waterRegionClasses,
+                                                                           lakeGridWidth, lakeGridHeight,
+                                                                           pos.x / lakeLabellingBlockSize,
+                                                                           pos.y / lakeLabellingBlockSize);
+                } else {
+                    regionClass = FubScapeMWaterRegions.NO_WATER;
                 }
-                isOcean = regionID != 0 && !isLake && !isAlongCoastline;
+                isLake = regionClass == FubScapeMWaterRegions.SMALL_REGION;
+                isOcean = regionClass == FubScapeMWaterRegions.LARGE_REGION && !isAlongCoastline;
             } else {
                 isOcean = waterFractionTile.getSampleFloat(pos.x, pos.y) > 50 && !isAlongCoastline;
             }
@@ -259,6 +323,27 @@ public class FubScapeMLakesOp extends Operator {
         }
     }
 
+    @Override
+    public void dispose() {
+        // releases the region classes, out of core together with their mapping of the deleted temporary file
+        if (waterRegionClassesTask != null) {
+            // interrupts a running labelling, which stops after the stripes in progress
+            waterRegionClassesTask.cancel(true);
+            waterRegionClassesTask = null;
+        }
+        final Thread labellingThread = lakeLabellingThread;
+        if (labellingThread != null) {
+            // no land/water mask reads after the operator is disposed
+            try {
+                labellingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            lakeLabellingThread = null;
+        }
+        super.dispose();
+    }
+
     /**
      * The Service Provider Interface (SPI) for the operator.
      * It provides operator meta-data and is a factory for new operator instances.
@@ -270,44 +355,31 @@ public class FubScapeMLakesOp extends Operator {
         }
     }
 
-    private class Region {
-        private List<Integer> subRegions;
-        private int size;
-
-        Region(int regionID) {
-            subRegions = new ArrayList<>();
-            subRegions.add(regionID);
-            size = -1;
-        }
-
-        void merge(Region region) {
-            subRegions.addAll(region.getSubRegions());
-        }
-
-        List<Integer> getSubRegions() {
-            return subRegions;
-        }
+    /**
+     * Logs the progress of the water region labelling in steps of 10 percent.
+     */
+    private static class LoggingProgressMonitor extends NullProgressMonitor {
 
-        public boolean isResponsibleRegionFor(int pixelID) {
-            for (Integer subRegion : subRegions) {
-                if (subRegion == pixelID) {
-                    return true;
-                }
-            }
-            return false;
-        }
+        private String taskName;
+        private int totalWork;
+        private int work;
+        private int loggedPercent;
 
-        boolean isOfMinimalSize() {
-            if (size == -1) {
-                evaluateSize();
-            }
-            return size >= minimumOceanSizeInPixels;
+        @Override
+        public void beginTask(String taskName, int totalWork) {
+            this.taskName = taskName;
+            this.totalWork = Math.max(totalWork, 1);
+            work = 0;
+            loggedPercent = 0;
         }
 
-        private void evaluateSize() {
-            size = 0;
-            for (Integer subRegion : subRegions) {
-                size += regionSizes.get(subRegion);
+        @Override
+        public void worked(int work) {
+            this.work += work;
+            final int percent = 100 * this.work / totalWork / 10 * 10;
+            if (percent > loggedPercent) {
+                loggedPercent = percent;
+                SystemUtils.LOG.fine(taskName + ": " + percent + "%");
             }
         }
     }
@@ -46,6 +46,23 @@ public class FubScapeMOp extends BasisOp {
     @Parameter(description = "Whether or not to calculate a lake mask", defaultValue = "true")
     private boolean calculateLakes;
 
+    @Parameter(description = "Whether to keep the lake labels in memory-mapped temporary files instead of the heap. " +
+            "Limited to 536870911 labelled pixels, i.e. scene pixels divided by the square of the labelling " +
+            "block size.",
+            defaultValue = "false")
+    private boolean labelLakesOutOfCore;
+
+    @Parameter(description = "The block size in pixels the water fraction is aggregated to for the lake labelling, " +
+            "1 for full resolution.", defaultValue = "1", interval = "[1,64]")
+    private int lakeLabellingBlockSize;
+
+    @Parameter(description = "Whether to cache the water regions on disk in the SNAP auxdata " +
+            "directory under 'scape-m/lakes'. Only reprocessing a product of identical size and geolocation hits " +
+            "the cache, which then skips the labelling, but not the land/water mask. The cache is limited to 1 GB, " +
+            "the least recently used files are deleted first.",
+            defaultValue = "false")
+    private boolean useLakeCache;
+
     @Override
     public void initialize() throws OperatorException {
         final boolean inputProductIsValid = IdepixUtils.isValidMerisProduct(sourceProduct);
@@ -64,6 +81,9 @@ public class FubScapeMOp extends BasisOp {
         operator.setParameter("thicknessOfCoast", thicknessOfCoast);
         operator.setParameter("minimumOceanSize", minimumOceanSize);
         operator.setParameter("calculateLakes", calculateLakes);
+        operator.setParameter("labelLakesOutOfCore", labelLakesOutOfCore);
+        operator.setParameter("lakeLabellingBlockSize", lakeLabellingBlockSize);
+        operator.setParameter("useLakeCache", useLakeCache);
         targetProduct = operator.getTargetProduct();
     }
 
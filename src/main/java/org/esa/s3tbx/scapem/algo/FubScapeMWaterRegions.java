@@ -0,0 +1,323 @@
+package org.esa.s3tbx.scapem.algo;
+
+import com.bc.ceres.core.ProgressMonitor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Connected water regions (4-connectivity) of a scene, labelled with a union-find over a flat pixel raster.
+ * Stripes of rows are labelled in parallel, the regions touching at stripe boundaries are merged afterwards.
+ * Out of core, the label raster and the region classes are kept in memory-mapped temporary files, so the heap only
+ * holds the water masks of the stripes in progress.
+ *
+ * @author agent
+ */
+class FubScapeMWaterRegions {
+
+    static final int DEFAULT_STRIPE_HEIGHT = 256;
+    static final int MAX_OUT_OF_CORE_PIXELS = Integer.MAX_VALUE / 4;
+
+    static final byte NO_WATER = 0;
+    static final byte LARGE_REGION = 1;
+    static final byte SMALL_REGION = 2;
+
+    /**
+     * Provides the water mask of a part of the scene.
+     */
+    interface WaterMaskSource {
+
+        /**
+         * @param rect - the scene rectangle
+         * @return the water mask of the rectangle, row by row
+         */
+        boolean[] getWaterMask(Rectangle rect);
+    }
+
+    private final int width;
+    private final int height;
+
+    // per pixel: 0 - no water, < 0 - root of a region of size -value, > 0 - index of the parent pixel + 1
+    private final IntBuffer labels;
+    private final boolean outOfCore;
+
+    private FubScapeMWaterRegions(int width, int height, boolean outOfCore) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.outOfCore = outOfCore;
+        final long numPixels = (long) width * height;
+        if (outOfCore) {
+            labels = mapTempFile("labels", numPixels * 4).asIntBuffer();
+        } else {
+            labels = IntBuffer.allocate((int) numPixels);
+        }
+    }
+
+    /**
+     * Labels the water regions of a scene.
+     *
+     * @param width        - the scene width
+     * @param height       - the scene height
+     * @param stripeHeight - the number of rows labelled per task
+     * @param source       - the water mask source, called concurrently for disjoint stripes
+     * @param outOfCore    - whether to keep the labels in a memory-mapped temporary file instead of the heap
+     * @param pm           - the progress monitor, one unit of work per stripe
+     * @return the water regions
+     * @throws IOException          if the temporary file cannot be created
+     * @throws InterruptedException if the calling thread is interrupted, checked between stripes and merged rows
+     */
+    static FubScapeMWaterRegions label(int width, int height, int stripeHeight, final WaterMaskSource source,
+                                       boolean outOfCore, ProgressMonitor pm)
+            throws IOException, InterruptedException {
+        final FubScapeMWaterRegions regions = new FubScapeMWaterRegions(width, height, outOfCore);
+        final List<ForkJoinTask<?>> stripeTasks = new ArrayList<>();
+        for (int y = 0; y < height; y += stripeHeight) {
+            final Rectangle stripe = new Rectangle(0, y, width, Math.min(stripeHeight, height - y));
+            stripeTasks.add(ForkJoinPool.commonPool().submit(new Runnable() {
+                @Override
+                public void run() {
+                    regions.labelStripe(stripe, source.getWaterMask(stripe));
+                }
+            }));
+        }
+        pm.beginTask("Labelling water regions", stripeTasks.size());
+        try {
+            for (ForkJoinTask<?> stripeTask : stripeTasks) {
+                checkInterrupted();
+                stripeTask.join();
+                pm.worked(1);
+            }
+            for (int y = stripeHeight; y < height; y += stripeHeight) {
+                checkInterrupted();
+                regions.mergeAcrossRow(y);
+            }
+        } finally {
+            // stripes not started yet are dropped if the labelling is interrupted or fails
+            for (ForkJoinTask<?> stripeTask : stripeTasks) {
+                stripeTask.cancel(true);
+            }
+            pm.done();
+        }
+        return regions;
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Labelling of water regions interrupted");
+        }
+    }
+
+    /**
+     * @return true if the pixel is water
+     */
+    boolean isWater(int x, int y) {
+        return labels.get(y * width + x) != 0;
+    }
+
+    /**
+     * Returns the size of the water region of a pixel. Does not modify the labels, so it may be called concurrently.
+     *
+     * @return the number of pixels of the region, 0 if the pixel is not water
+     */
+    int getRegionSize(int x, int y) {
+        int label = labels.get(y * width + x);
+        if (label == 0) {
+            return 0;
+        }
+        while (label > 0) {
+            label = labels.get(label - 1);
+        }
+        return -label;
+    }
+
+    /**
+     * Classifies each pixel by the size of its water region. Labels are resolved to their roots first, so the result
+     * can be looked up per pixel without any dependence on the number of regions.
+     *
+     * @param minimumRegionSize - the minimal number of pixels of a large region
+     * @return per pixel, row by row: NO_WATER, LARGE_REGION or SMALL_REGION; memory-mapped if out of core
+     * @throws IOException if the temporary file cannot be created
+     */
+    ByteBuffer classifyRegions(int minimumRegionSize) throws IOException {
+        flatten();
+        final int numPixels = labels.capacity();
+        final ByteBuffer regionClasses = outOfCore ? mapTempFile("classes", numPixels) : ByteBuffer.allocate(numPixels);
+        for (int pixel = 0; pixel < numPixels; pixel++) {
+            final int label = labels.get(pixel);
+            if (label != 0) {
+                final int size = label < 0 ? -label : -labels.get(label - 1);
+                regionClasses.put(pixel, size < minimumRegionSize ? SMALL_REGION : LARGE_REGION);
+            }
+        }
+        return regionClasses;
+    }
+
+    /**
+     * Wraps a full resolution water mask source into a source of the block-aggregated grid. A block is water if at
+     * least half of its pixels within the scene are water.
+     *
+     * @param source    - the full resolution source
+     * @param blockSize - the block width and height in pixels
+     * @param width     - the full resolution scene width
+     * @param height    - the full resolution scene height
+     * @return the source of the block grid
+     */
+    static WaterMaskSource createBlockSource(final WaterMaskSource source, final int blockSize,
+                                             final int width, final int height) {
+        return new WaterMaskSource() {
+            @Override
+            public boolean[] getWaterMask(Rectangle blockRect) {
+                final Rectangle rect = new Rectangle(blockRect.x * blockSize, blockRect.y * blockSize,
+                                                     blockRect.width * blockSize, blockRect.height * blockSize).
+                        intersection(new Rectangle(width, height));
+                final boolean[] water = source.getWaterMask(rect);
+                final int[] numWater = new int[blockRect.width * blockRect.height];
+                final int[] numPixels = new int[blockRect.width * blockRect.height];
+                for (int y = 0; y < rect.height; y++) {
+                    final int blockRowOffset = (y / blockSize) * blockRect.width;
+                    for (int x = 0; x < rect.width; x++) {
+                        final int block = blockRowOffset + x / blockSize;
+                        numPixels[block]++;
+                        if (water[y * rect.width + x]) {
+                            numWater[block]++;
+                        }
+                    }
+                }
+                final boolean[] blockWater = new boolean[numWater.length];
+                for (int i = 0; i < blockWater.length; i++) {
+                    blockWater[i] = 2 * numWater[i] >= numPixels[i];
+                }
+                return blockWater;
+            }
+        };
+    }
+
+    /**
+     * Returns the region class of a full resolution water pixel from the classes of the block grid. A water pixel in
+     * a land block belongs to a large region if any neighbouring block does, else to a small region.
+     *
+     * @param blockClasses - the region classes of the block grid
+     * @param gridWidth    - the block grid width
+     * @param gridHeight   - the block grid height
+     * @param blockX       - the block column of the pixel
+     * @param blockY       - the block row of the pixel
+     * @return LARGE_REGION or SMALL_REGION
+     */
+    static byte getWaterPixelClass(ByteBuffer blockClasses, int gridWidth, int gridHeight, int blockX, int blockY) {
+        final byte blockClass = blockClasses.get(blockY * gridWidth + blockX);
+        if (blockClass != NO_WATER) {
+            return blockClass;
+        }
+        for (int y = Math.max(0, blockY - 1); y <= Math.min(gridHeight - 1, blockY + 1); y++) {
+            for (int x = Math.max(0, blockX - 1); x <= Math.min(gridWidth - 1, blockX + 1); x++) {
+                if (blockClasses.get(y * gridWidth + x) == LARGE_REGION) {
+                    return LARGE_REGION;
+                }
+            }
+        }
+        return SMALL_REGION;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    private void labelStripe(Rectangle stripe, boolean[] water) {
+        for (int y = stripe.y; y < stripe.y + stripe.height; y++) {
+            final int rowOffset = (y - stripe.y) * width;
+            for (int x = 0; x < width; x++) {
+                if (water[rowOffset + x]) {
+                    final int pixel = y * width + x;
+                    labels.put(pixel, -1);
+                    if (x > 0 && water[rowOffset + x - 1]) {
+                        union(pixel, pixel - 1);
+                    }
+                    if (y > stripe.y && water[rowOffset - width + x]) {
+                        union(pixel, pixel - width);
+                    }
+                }
+            }
+        }
+    }
+
+    private void mergeAcrossRow(int y) {
+        for (int x = 0; x < width; x++) {
+            final int pixel = y * width + x;
+            if (labels.get(pixel) != 0 && labels.get(pixel - width) != 0) {
+                union(pixel, pixel - width);
+            }
+        }
+    }
+
+    // lets every pixel point directly to its root
+    private void flatten() {
+        for (int pixel = 0; pixel < labels.capacity(); pixel++) {
+            if (labels.get(pixel) > 0) {
+                labels.put(pixel, find(pixel) + 1);
+            }
+        }
+    }
+
+    // union by size, the root keeps the negative size
+    private void union(int pixel1, int pixel2) {
+        int root1 = find(pixel1);
+        int root2 = find(pixel2);
+        if (root1 != root2) {
+            if (labels.get(root1) > labels.get(root2)) {
+                final int tmp = root1;
+                root1 = root2;
+                root2 = tmp;
+            }
+            labels.put(root1, labels.get(root1) + labels.get(root2));
+            labels.put(root2, root1 + 1);
+        }
+    }
+
+    // find with path halving
+    private int find(int pixel) {
+        while (labels.get(pixel) > 0) {
+            final int parent = labels.get(pixel) - 1;
+            if (labels.get(parent) > 0) {
+                labels.put(pixel, labels.get(parent));
+            }
+            pixel = labels.get(pixel) - 1;
+        }
+        return pixel;
+    }
+
+    // A single mapping holds at most Integer.MAX_VALUE bytes, i.e. MAX_OUT_OF_CORE_PIXELS labels. The mapping stays
+    // valid after the channel is closed and the file is deleted, so the disk space is freed as soon as the buffer is
+    // garbage collected. Where a mapped file cannot be deleted (Windows), it is removed when the VM exits.
+    private static ByteBuffer mapTempFile(String suffix, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Scene too large for a memory-mapped " + suffix + " file: " + size + " bytes, " +
+                                          "at most " + MAX_OUT_OF_CORE_PIXELS + " pixels can be labelled out of core");
+        }
+        final File file = File.createTempFile("scapem-water-regions-", "." + suffix);
+        try {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(size);
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size).
+                        order(ByteOrder.nativeOrder());
+            }
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
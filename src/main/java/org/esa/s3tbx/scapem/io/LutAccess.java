@@ -96,6 +96,23 @@ public class LutAccess {
                                                  double hsf,
                                                  double vis,
                                                  double cwv) {
+        return interpolAtmParamLut(atmParamLut, vza, sza, raa, hsf, vis, cwv, null);
+    }
+
+    /**
+     * As {@link #interpolAtmParamLut(LookupTable, double, double, double, double, double, double)},
+     * but interpolates the selected bands only. The rows of the other bands are left zero.
+     *
+     * @param bands - the bands to interpolate, all bands if null
+     */
+    public static double[][] interpolAtmParamLut(LookupTable atmParamLut,
+                                                 double vza,
+                                                 double sza,
+                                                 double raa,
+                                                 double hsf,
+                                                 double vis,
+                                                 double cwv,
+                                                 boolean[] bands) {
         final float[] wvl = ScapeMConstants.MERIS_WAVELENGTHS;
         final double[] params = atmParamLut.getDimension(6).getSequence();
         double[][] result = new double[wvl.length][7];
@@ -112,6 +129,9 @@ public class LutAccess {
         LookupTable.computeFracIndex(atmParamLut.getDimension(5), cwv, fracIndices[5]);
 
         for (int i = 0; i < result.length; i++) {
+            if (bands != null && !bands[i]) {
+                continue;
+            }
             int index = 0;
             LookupTable.computeFracIndex(atmParamLut.getDimension(7), wvl[i], fracIndices[7]);
             for (double param : params) {
@@ -0,0 +1,225 @@
+package org.esa.s3tbx.scapem.operator;
+
+import org.apache.commons.math3.analysis.solvers.BrentSolver;
+import org.apache.commons.math3.exception.NoBracketingException;
+import org.esa.s3tbx.scapem.ScapeMConstants;
+
+/**
+ * Per-pixel atmospheric correction kernel of SCAPE-M AC part.
+ * Only the four vis/hsurf corners bracketing a pixel are interpolated from the {@link ScapeMAtmosphereCube}.
+ * The water vapour is retrieved from bands 14/15 first, all other bands are then evaluated at the two water vapour
+ * nodes bracketing the result only. Reflectances are computed for the selected bands only, in two phases:
+ * the per-pixel terms are first collected into per-band arrays, which are then inverted band by band in a tight
+ * loop over contiguous pixels.
+ * The water vapour is found either by Brent root finding or by a {@link WaterVapourTableInversion}.
+ * A kernel instance holds reusable work buffers and must therefore not be shared between threads.
+ *
+ * @author agent
+ */
+public class ScapeMAcKernel {
+
+    private static final int WV_BAND_1 = 13;
+    private static final int WV_BAND_2 = 14;
+
+    private final ScapeMAtmosphereCube cube;
+    private final double cosSzaMeanCell;
+    private final boolean useConstantWv;
+    private final boolean[] reflBands;
+
+    private final double[] cwvArrayLUT;
+    private final double[] visArrayLUT;
+    private final double[] hsfArrayLUT;
+    private final double wvLower;
+    private final double wvUpper;
+
+    private final double[][][] parAtmH;
+    private final double[] reflPix;
+    private final WaterVapourFunction wvFunction;
+    private final BrentSolver brentSolver;
+    private final WaterVapourTableInversion wvTableInversion;
+
+    // bracketing corners of the current pixel
+    private int visIndex;
+    private int hsIndex;
+    private double visP;
+    private double hsP;
+    private double cosSza;
+
+    /**
+     * @param scapeMLut      - the atmospheric look-up table
+     * @param cube           - the atmosphere cube of the cell
+     * @param cosSzaMeanCell - the cos(SZA) cell mean value
+     * @param useConstantWv  - use constant Wv if set
+     * @param wvRetrieval    - the water vapour retrieval method, one of the ScapeMConstants.WV_RETRIEVAL_* values
+     * @param wvFtol         - absolute tolerance of the Brent water vapour retrieval
+     * @param reflBands      - the bands for which reflectances are computed (never 11 and 15)
+     */
+    public ScapeMAcKernel(ScapeMLut scapeMLut, ScapeMAtmosphereCube cube, double cosSzaMeanCell,
+                          boolean useConstantWv, String wvRetrieval, double wvFtol, boolean[] reflBands) {
+        this.cube = cube;
+        this.cosSzaMeanCell = cosSzaMeanCell;
+        this.useConstantWv = useConstantWv;
+        this.reflBands = reflBands;
+
+        cwvArrayLUT = scapeMLut.getCwvArrayLUT();
+        visArrayLUT = scapeMLut.getVisArrayLUT();
+        hsfArrayLUT = scapeMLut.getHsfArrayLUT();
+        wvLower = scapeMLut.getCwvMin();
+        wvUpper = scapeMLut.getCwvMax();
+
+        parAtmH = new double[3][2][cwvArrayLUT.length];
+        reflPix = new double[2];
+        wvFunction = new WaterVapourFunction();
+        wvFunction.setWvGr2(cwvArrayLUT);
+        wvFunction.setParAtmH(parAtmH);
+        wvFunction.setReflPix(reflPix);
+        if (ScapeMConstants.WV_RETRIEVAL_BRENT.equals(wvRetrieval)) {
+            brentSolver = new BrentSolver(wvFtol);
+            wvTableInversion = null;
+        } else {
+            final boolean newtonPolish = ScapeMConstants.WV_RETRIEVAL_TABLE_NEWTON.equals(wvRetrieval);
+            brentSolver = null;
+            wvTableInversion = new WaterVapourTableInversion(wvFunction, cwvArrayLUT, wvLower, wvUpper, newtonPolish);
+        }
+    }
+
+    /**
+     * Retrieves the water vapour for a clear pixel and stores the path radiance, transmittance and spherical albedo
+     * terms of the selected bands at this water vapour in the term arrays of the given pixel.
+     *
+     * @param pixelIndex - index of the pixel in the term arrays
+     * @param demPix     - the pixel elevation
+     * @param visPix     - the pixel visibility
+     * @param cosSza     - the pixel cos(SZA)
+     * @param ratioMeris - the radiance ratio of bands 15/14
+     * @param reflPix1   - the 'reflectance image' value at band 14
+     * @param reflPix2   - the 'reflectance image' value extrapolated to band 15
+     * @param lpwAc      - path radiance terms [band][pixel]
+     * @param etwAc      - transmittance terms [band][pixel]
+     * @param sabAc      - spherical albedo terms [band][pixel]
+     * @return the water vapour
+     */
+    public double computePixelTerms(int pixelIndex, double demPix, double visPix, double cosSza,
+                                    double ratioMeris, double reflPix1, double reflPix2,
+                                    double[][] lpwAc, double[][] etwAc, double[][] sabAc) {
+        setCorners(demPix, visPix, cosSza);
+
+        double wvResult = ScapeMConstants.WV_INIT;
+        double wvP = ScapeMConstants.WV_INIT;
+        int wvInf = cwvArrayLUT.length / 2;
+        if (!useConstantWv) {
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < cwvArrayLUT.length; j++) {
+                    parAtmH[0][i][j] = interpolateCorners(cube.lpw[i + WV_BAND_1][j]);
+                    parAtmH[1][i][j] = interpolateEtwCorners(i + WV_BAND_1, j);
+                    parAtmH[2][i][j] = interpolateCorners(cube.sab[i + WV_BAND_1][j]);
+                }
+            }
+            reflPix[0] = reflPix1;
+            reflPix[1] = reflPix2;
+            wvFunction.setMerisRatio(ratioMeris);
+            if (wvTableInversion != null) {
+                if (wvTableInversion.retrieve()) {
+                    wvResult = wvTableInversion.getWv();
+                    wvInf = wvFunction.getWvInf();
+                    wvP = wvFunction.getWvP();
+                }
+                // otherwise retrieval outside valid range, keep default value
+            } else {
+                try {
+                    wvResult = brentSolver.solve(ScapeMConstants.MAXITER, wvFunction, wvLower, wvUpper);
+                    wvInf = wvFunction.getWvInf();
+                    wvP = wvFunction.getWvP();
+                } catch (NoBracketingException e) {
+                    // retrieval outside valid range, set to default value
+                    wvResult = ScapeMConstants.WV_INIT;
+                    wvP = ScapeMConstants.WV_INIT;
+                    wvInf = cwvArrayLUT.length / 2;
+                    // todo: check if flag should be raised
+                }
+            }
+        }
+
+        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+            if (reflBands[bandId]) {
+                final double lpwInf = interpolateCorners(cube.lpw[bandId][wvInf]);
+                final double lpwSup = interpolateCorners(cube.lpw[bandId][wvInf + 1]);
+                final double etwInf = interpolateEtwCorners(bandId, wvInf);
+                final double etwSup = interpolateEtwCorners(bandId, wvInf + 1);
+                final double sabInf = interpolateCorners(cube.sab[bandId][wvInf]);
+                final double sabSup = interpolateCorners(cube.sab[bandId][wvInf + 1]);
+
+                lpwAc[bandId][pixelIndex] = lpwInf + wvP * (lpwSup - lpwInf);
+                etwAc[bandId][pixelIndex] = etwInf + wvP * (etwSup - etwInf);
+                sabAc[bandId][pixelIndex] = sabInf + wvP * (sabSup - sabInf);
+            }
+        }
+        return wvResult;
+    }
+
+    /**
+     * Inverts TOA values of one band to surface reflectances, for a run of pixels given as contiguous arrays.
+     *
+     * @param toa       - TOA values per pixel
+     * @param lpwAc     - path radiance per pixel
+     * @param etwAc     - transmittance per pixel
+     * @param sabAc     - spherical albedo per pixel
+     * @param numPixels - number of pixels
+     * @param refl      - the array receiving the reflectances
+     * @param offset    - the index of the first pixel in refl
+     */
+    public static void invertReflectances(double[] toa, double[] lpwAc, double[] etwAc, double[] sabAc,
+                                          int numPixels, float[] refl, int offset) {
+        for (int i = 0; i < numPixels; i++) {
+            final double xTerm = Math.PI * (toa[i] - lpwAc[i]) / etwAc[i];
+            refl[offset + i] = (float) (xTerm / (1.0 + sabAc[i] * xTerm));
+        }
+    }
+
+    private void setCorners(double demPix, double visPix, double cosSza) {
+        this.cosSza = cosSza;
+
+        hsIndex = 0;
+        for (int i = 0; i < hsfArrayLUT.length - 1; i++) {
+            if (demPix >= hsfArrayLUT[i]) {
+                hsIndex = i;
+            }
+        }
+        hsP = (demPix - hsfArrayLUT[hsIndex]) / (hsfArrayLUT[hsIndex + 1] - hsfArrayLUT[hsIndex]);
+
+        visIndex = 0;
+        for (int i = 0; i < visArrayLUT.length - 1; i++) {
+            if (visPix >= visArrayLUT[i]) {
+                visIndex = i;
+            }
+        }
+        visP = (visPix - visArrayLUT[visIndex]) / (visArrayLUT[visIndex + 1] - visArrayLUT[visIndex]);
+    }
+
+    // bilinear vis/hsurf interpolation of a [vis][hsurf] slice at the current corners
+    private double interpolateCorners(double[][] term) {
+        return (1.0 - visP) * (1.0 - hsP) * term[visIndex][hsIndex] +
+                hsP * (1.0 - visP) * term[visIndex][hsIndex + 1] +
+                (1.0 - hsP) * visP * term[visIndex + 1][hsIndex] +
+                visP * hsP * term[visIndex + 1][hsIndex + 1];
+    }
+
+    // same as interpolateCorners, with etw adjusted to the pixel illumination at the corners only
+    private double interpolateEtwCorners(int bandId, int wvIndex) {
+        return (1.0 - visP) * (1.0 - hsP) * getEtw(bandId, wvIndex, visIndex, hsIndex) +
+                hsP * (1.0 - visP) * getEtw(bandId, wvIndex, visIndex, hsIndex + 1) +
+                (1.0 - hsP) * visP * getEtw(bandId, wvIndex, visIndex + 1, hsIndex) +
+                visP * hsP * getEtw(bandId, wvIndex, visIndex + 1, hsIndex + 1);
+    }
+
+    private double getEtw(int bandId, int i, int j, int k) {
+        final double tDirD = cube.tDirD[bandId][i][j][k];
+        // (1.- tdir_d * mus) * mun_term_arr[ind]:
+        final double sum1 = (1.0 - tDirD * cosSzaMeanCell) * 1.0;   // this is less precise, but follows IDL
+        // tdir_d * mus_il_arr[ind] :
+        final double sum2 = tDirD * cosSza;
+        // e0tw * mus_il_arr[ind] :
+        final double sum3 = cube.e0tw[bandId][i][j][k] * cosSza;
+        return sum3 + cube.ediftw[bandId][i][j][k] * (sum2 + sum1);
+    }
+}
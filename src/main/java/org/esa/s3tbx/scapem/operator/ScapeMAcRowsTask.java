@@ -0,0 +1,193 @@
+package org.esa.s3tbx.scapem.operator;
+
+import org.esa.s3tbx.scapem.ScapeMConstants;
+import org.esa.s3tbx.scapem.util.ClearPixelStrategy;
+import org.esa.snap.core.gpf.Tile;
+
+import java.awt.*;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Per-pixel atmospheric correction of a range of rows of a cell.
+ * The task splits itself into row chunks when run in a fork-join pool. All chunks share the read-only cell
+ * inputs (incl. the {@link ScapeMAtmosphereCube}) and write disjoint parts of the target buffers, each chunk
+ * uses its own {@link ScapeMAcKernel}.
+ *
+ * @author agent
+ */
+class ScapeMAcRowsTask extends RecursiveAction {
+
+    private static final int MIN_ROWS_PER_TASK = 8;
+
+    private final Inputs inputs;
+    private final int yStart;
+    private final int yEnd;
+
+    ScapeMAcRowsTask(Rectangle rect,
+                     Tile visibilityTile,
+                     ClearPixelStrategy clearPixelStrategy,
+                     boolean useConstantWv,
+                     String wvRetrieval,
+                     double wvFtol,
+                     double[][][] toaArrayCell,
+                     double[][] hsurfArray,
+                     double[][] cosSzaArray,
+                     double cosSzaMeanCell,
+                     double[][][] reflImg,
+                     Tile radianceTile13,
+                     Tile radianceTile14,
+                     ScapeMLut scapeMLut,
+                     ScapeMAtmosphereCube cube,
+                     Tile wvTile,
+                     Tile[] reflTiles) {
+        inputs = new Inputs();
+        inputs.rect = rect;
+        inputs.visibilityTile = visibilityTile;
+        inputs.clearPixelStrategy = clearPixelStrategy;
+        inputs.useConstantWv = useConstantWv;
+        inputs.wvRetrieval = wvRetrieval;
+        inputs.wvFtol = wvFtol;
+        inputs.toaArrayCell = toaArrayCell;
+        inputs.hsurfArray = hsurfArray;
+        inputs.cosSzaArray = cosSzaArray;
+        inputs.cosSzaMeanCell = cosSzaMeanCell;
+        inputs.reflImg = reflImg;
+        inputs.radianceTile13 = radianceTile13;
+        inputs.radianceTile14 = radianceTile14;
+        inputs.scapeMLut = scapeMLut;
+        inputs.cube = cube;
+        inputs.wvTile = wvTile;
+        inputs.reflTiles = reflTiles;
+        inputs.reflBands = new boolean[ScapeMConstants.L1_BAND_NUM];
+        inputs.reflData = new float[ScapeMConstants.L1_BAND_NUM][];
+        for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+            if (reflTiles[i] != null) {
+                inputs.reflBands[i] = true;
+                inputs.reflData[i] = reflTiles[i].getDataBufferFloat();
+            }
+        }
+        inputs.wvData = wvTile != null ? wvTile.getDataBufferFloat() : null;
+        yStart = rect.y;
+        yEnd = rect.y + rect.height;
+    }
+
+    private ScapeMAcRowsTask(Inputs inputs, int yStart, int yEnd) {
+        this.inputs = inputs;
+        this.yStart = yStart;
+        this.yEnd = yEnd;
+    }
+
+    @Override
+    protected void compute() {
+        if (yEnd - yStart < 2 * MIN_ROWS_PER_TASK) {
+            computeRows();
+        } else {
+            final int yMid = (yStart + yEnd) / 2;
+            invokeAll(new ScapeMAcRowsTask(inputs, yStart, yMid), new ScapeMAcRowsTask(inputs, yMid, yEnd));
+        }
+    }
+
+    /**
+     * Computes the rows of this task in the calling thread.
+     * Per row, the water vapour and the atmospheric terms are first computed pixel by pixel, then the
+     * reflectances are inverted band by band over the whole row.
+     */
+    void computeRows() {
+        final Rectangle rect = inputs.rect;
+        final int width = rect.width;
+        final boolean[] reflBands = inputs.reflBands;
+        final float[][] reflData = inputs.reflData;
+        final float[] wvData = inputs.wvData;
+
+        final ScapeMAcKernel acKernel = new ScapeMAcKernel(inputs.scapeMLut, inputs.cube, inputs.cosSzaMeanCell,
+                                                             inputs.useConstantWv, inputs.wvRetrieval, inputs.wvFtol,
+                                                             reflBands);
+        final boolean[] clearRow = new boolean[width];
+        final double[][] toaRow = new double[ScapeMConstants.L1_BAND_NUM][];
+        final double[][] lpwAc = new double[ScapeMConstants.L1_BAND_NUM][];
+        final double[][] etwAc = new double[ScapeMConstants.L1_BAND_NUM][];
+        final double[][] sabAc = new double[ScapeMConstants.L1_BAND_NUM][];
+        for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+            if (reflBands[i]) {
+                toaRow[i] = new double[width];
+                lpwAc[i] = new double[width];
+                etwAc[i] = new double[width];
+                sabAc[i] = new double[width];
+            }
+        }
+
+        for (int y = yStart; y < yEnd; y++) {
+            final int yCell = y - rect.y;
+            int wvIndex = wvData != null ? inputs.wvTile.getDataBufferIndex(rect.x, y) : 0;
+            for (int p = 0; p < width; p++) {
+                final int x = rect.x + p;
+                clearRow[p] = inputs.clearPixelStrategy.isValid(x, y);
+                double wvResult = ScapeMConstants.AC_NODATA;
+                if (clearRow[p]) {
+                    double ratioMeris = 0.0;
+                    double reflPix1 = 0.0;
+                    double reflPix2 = 0.0;
+                    if (!inputs.useConstantWv) {
+                        ratioMeris = inputs.radianceTile14.getSampleDouble(x, y) /
+                                inputs.radianceTile13.getSampleDouble(x, y);
+                        reflPix1 = inputs.reflImg[1][p][yCell];
+                        reflPix2 = inputs.reflImg[2][p][yCell];
+                    }
+                    wvResult = acKernel.computePixelTerms(p,
+                                                          inputs.hsurfArray[p][yCell],
+                                                          inputs.visibilityTile.getSampleDouble(x, y),
+                                                          inputs.cosSzaArray[p][yCell],
+                                                          ratioMeris,
+                                                          reflPix1,
+                                                          reflPix2,
+                                                          lpwAc, etwAc, sabAc);
+                }
+                if (wvData != null) {
+                    wvData[wvIndex++] = (float) wvResult;
+                }
+            }
+
+            for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+                if (reflBands[i]) {
+                    final double[][] toaArray = inputs.toaArrayCell[i];
+                    final double[] toa = toaRow[i];
+                    for (int p = 0; p < width; p++) {
+                        toa[p] = toaArray[p][yCell];
+                    }
+                    final int reflIndex = inputs.reflTiles[i].getDataBufferIndex(rect.x, y);
+                    ScapeMAcKernel.invertReflectances(toa, lpwAc[i], etwAc[i], sabAc[i], width, reflData[i], reflIndex);
+                    // invalid due to one or more of the above cases
+                    for (int p = 0; p < width; p++) {
+                        if (!clearRow[p]) {
+                            reflData[i][reflIndex + p] = (float) ScapeMConstants.AC_NODATA;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // the cell inputs shared by all row chunks
+    private static class Inputs {
+        Rectangle rect;
+        Tile visibilityTile;
+        ClearPixelStrategy clearPixelStrategy;
+        boolean useConstantWv;
+        String wvRetrieval;
+        double wvFtol;
+        double[][][] toaArrayCell;
+        double[][] hsurfArray;
+        double[][] cosSzaArray;
+        double cosSzaMeanCell;
+        double[][][] reflImg;
+        Tile radianceTile13;
+        Tile radianceTile14;
+        ScapeMLut scapeMLut;
+        ScapeMAtmosphereCube cube;
+        Tile wvTile;
+        Tile[] reflTiles;
+        boolean[] reflBands;
+        float[][] reflData;
+        float[] wvData;
+    }
+}
@@ -1,9 +1,6 @@
 package org.esa.s3tbx.scapem.operator;
 
 
-import Stats.LinFit;
-import org.apache.commons.math3.analysis.solvers.BrentSolver;
-import org.apache.commons.math3.exception.NoBracketingException;
 import org.esa.s3tbx.scapem.ScapeMConstants;
 import org.esa.s3tbx.scapem.io.LutAccess;
 import org.esa.s3tbx.scapem.math.Powell;
@@ -17,12 +14,12 @@ import org.esa.snap.core.datamodel.GeoPos;
 import org.esa.snap.core.datamodel.PixelPos;
 import org.esa.snap.core.dataop.dem.ElevationModel;
 import org.esa.snap.core.gpf.Tile;
-import org.esa.snap.core.util.math.MathUtils;
 
 import java.awt.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Class representing SCAPE-M algorithm
@@ -52,6 +49,25 @@ public class ScapeMAlgorithm {
         return countClearLand / (rect.getWidth() * rect.getHeight()) > percentage;
     }
 
+    /**
+     * Determines if cell contains at least one clear pixel. Stops at the first clear pixel found, so this is a cheap
+     * check to be done before any radiance, geometry or DEM data of the cell is requested.
+     *
+     * @param rect               - cell rectangle
+     * @param clearPixelStrategy - clearPixelStrategy
+     * @return boolean - cell has clear pixels or not
+     */
+    static boolean hasClearPixels(Rectangle rect, ClearPixelStrategy clearPixelStrategy) {
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            for (int x = rect.x; x < rect.x + rect.width; x++) {
+                if (clearPixelStrategy.isValid(x, y)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * @param SurfCells          - surf single values
      * @param clearPixelStrategy - strategy how clear pixels are determined
@@ -143,26 +159,6 @@ public class ScapeMAlgorithm {
     }
 
 
-    /**
-     * Returns the cos(SZA) array in a 30x30km cell
-     *
-     * @param rect - the tile rectangle
-     * @return double[][] - the cos(SZA) array
-     */
-    static double[][] getCosSzaArrayCell(Rectangle rect,
-                                         Tile szaTile) {
-
-        double[][] cosSza = new double[rect.width][rect.height];
-        for (int y = rect.y; y < rect.y + rect.height; y++) {
-            for (int x = rect.x; x < rect.x + rect.width; x++) {
-                final double sza = szaTile.getSampleDouble(x, y);
-                cosSza[x - rect.x][y - rect.y] = Math.cos(sza * MathUtils.DTOR);
-            }
-        }
-
-        return cosSza;
-    }
-
     /**
      * Returns the TOA minimum value in a 30x30km cell
      *
@@ -220,6 +216,10 @@ public class ScapeMAlgorithm {
      * @param cosSzaArrayCell      - cosSza singe values
      * @param cosSzaMeanCell       - cosSza mean cell value
      * @param cellIsClear45Percent - true if cell is > 45% clea land
+     * @param scapeMLut            - the atmospheric look-up table
+     * @param powellFtol           - fractional tolerance of the Powell minimisation
+     * @param numVegEndMembers     - number of vegetation end members tried (1..3)
+     * @param limRefSets           - maximum number of reference pixel sets used
      * @return double - the visibility
      */
     static double getCellVisibility(double[][][] toaArrayCell,
@@ -229,7 +229,10 @@ public class ScapeMAlgorithm {
                                     double[][] cosSzaArrayCell, // mus_il_sub
                                     double cosSzaMeanCell, // mus_il
                                     boolean cellIsClear45Percent,
-                                    ScapeMLut scapeMLut) {
+                                    ScapeMLut scapeMLut,
+                                    double powellFtol,
+                                    int numVegEndMembers,
+                                    int limRefSets) {
 
         final int nVis = scapeMLut.getVisArrayLUT().length;
         final double[] step = {1.0, 0.1};
@@ -274,7 +277,7 @@ public class ScapeMAlgorithm {
                 }
                 if (!invalid) {
                     visVal = computeRefinedVisibility(visVal, refPixels, vza, sza, raa, hsurfMeanCell, wvInit,
-                            cosSzaMeanCell, scapeMLut);
+                            cosSzaMeanCell, scapeMLut, powellFtol, numVegEndMembers, limRefSets);
                 }
             }
         }
@@ -367,34 +370,48 @@ public class ScapeMAlgorithm {
     }
 
     /**
-     * Returns the AOT at 550nm for a 30x30km cell
+     * Converts the visibility of a tile to AOT at 550nm and writes it into a float AOT target tile.
+     * Used by the visibility to AOT operator and by the AC operator if it derives AOT in the same pass.
+     *
+     * @param aot550Tile     - the AOT550 target tile (float)
+     * @param targetRect     - the target rectangle
+     * @param visibilityTile - the visibility tile
+     * @param hsurfArrayCell - the surface heights of the rectangle
+     * @param scapeMLut      - the atmospheric look-up table
+     * @param useTable       - if set, the fits are taken from the table tabulated over ln(vis)
+     */
+    static void setAot550Samples(Tile aot550Tile, Rectangle targetRect, Tile visibilityTile,
+                                 double[][] hsurfArrayCell, ScapeMLut scapeMLut, boolean useTable) {
+        final float[] aot550Data = aot550Tile.getDataBufferFloat();
+        for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
+            int index = aot550Tile.getDataBufferIndex(targetRect.x, y);
+            for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
+                final double visibility = visibilityTile.getSampleDouble(x, y);
+                if (visibility != ScapeMConstants.VISIBILITY_NODATA_VALUE) {
+                    aot550Data[index++] = (float) getCellAot550(visibility,
+                            hsurfArrayCell[x - targetRect.x][y - targetRect.y], scapeMLut, useTable);
+                } else {
+                    aot550Data[index++] = (float) ScapeMConstants.AOT_NODATA_VALUE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the AOT at 550nm for a 30x30km cell, using the log-log fits precomputed in the LUT
      *
      * @param visibility - the visibility
      * @param hsurf      - the elevation
      * @param scapeMLut  - the atmospheric look-up table
+     * @param useTable   - if set, the fits are taken from the table tabulated over ln(vis) within the LUT range
      * @return double - the AOT
      */
-    static double getCellAot550(double visibility, double hsurf, ScapeMLut scapeMLut) {
+    static double getCellAot550(double visibility, double hsurf, ScapeMLut scapeMLut, boolean useTable) {
 
         double aot550;
 
-        double lnVis = Math.log(visibility);
-
-        double[][] aCoeff = new double[scapeMLut.getHsfArrayLUT().length][2];
-        double[] lnVisGr = new double[scapeMLut.getVisArrayLUT().length];
-        double[] lnAotGr = new double[scapeMLut.getVisArrayLUT().length];
-        for (int i = 0; i < lnVisGr.length; i++) {
-            lnVisGr[i] = Math.log(scapeMLut.getVisArrayLUT()[i]);
-        }
-
-        for (int i = 0; i < scapeMLut.getHsfArrayLUT().length; i++) {
-            for (int j = 0; j < lnVisGr.length; j++) {
-                lnAotGr[j] = Math.log(ScapeMConstants.AOT_GRID[i][j]);
-            }
-            final LinFit linFit = new LinFit(lnVisGr, lnAotGr, lnVisGr.length);
-            aCoeff[i][0] = linFit.getA();
-            aCoeff[i][1] = linFit.getB();
-        }
+        final double lnVis = Math.log(visibility);
+        final double[][] aCoeff = scapeMLut.getAotFitCoeffs();
 
         int hsfIndexToUse = -1;
         for (int i = 0; i < scapeMLut.getHsfArrayLUT().length; i++) {
@@ -405,8 +422,20 @@ public class ScapeMAlgorithm {
         if (hsfIndexToUse >= 0) {
             double hsp = (hsurf - scapeMLut.getHsfArrayLUT()[hsfIndexToUse]) /
                     (scapeMLut.getHsfArrayLUT()[hsfIndexToUse + 1] - scapeMLut.getHsfArrayLUT()[hsfIndexToUse]);
-            double aotTmp1 = Math.exp(aCoeff[hsfIndexToUse][0] + aCoeff[hsfIndexToUse][1] * lnVis);
-            double aotTmp2 = Math.exp(aCoeff[hsfIndexToUse + 1][0] + aCoeff[hsfIndexToUse + 1][1] * lnVis);
+            final double tablePos = (lnVis - scapeMLut.getAotTableLnVisMin()) / scapeMLut.getAotTableLnVisStep();
+            double aotTmp1;
+            double aotTmp2;
+            if (useTable && tablePos >= 0.0 && tablePos < scapeMLut.getAotTable()[0].length - 1) {
+                final int k = (int) tablePos;
+                final double w = tablePos - k;
+                final double[] aotTable1 = scapeMLut.getAotTable()[hsfIndexToUse];
+                final double[] aotTable2 = scapeMLut.getAotTable()[hsfIndexToUse + 1];
+                aotTmp1 = aotTable1[k] + w * (aotTable1[k + 1] - aotTable1[k]);
+                aotTmp2 = aotTable2[k] + w * (aotTable2[k + 1] - aotTable2[k]);
+            } else {
+                aotTmp1 = Math.exp(aCoeff[hsfIndexToUse][0] + aCoeff[hsfIndexToUse][1] * lnVis);
+                aotTmp2 = Math.exp(aCoeff[hsfIndexToUse + 1][0] + aCoeff[hsfIndexToUse + 1][1] * lnVis);
+            }
             aot550 = aotTmp1 + (aotTmp2 - aotTmp1) * hsp;
         } else {
             aot550 = ScapeMConstants.AOT_NODATA_VALUE;
@@ -451,204 +480,57 @@ public class ScapeMAlgorithm {
 
 
     /**
+     * Computes water vapour and atmospheric corrected reflectances of a cell and writes them directly
+     * into the data buffers of the given (float) target tiles.
+     *
      * @param rect               - the target rectangle
      * @param visibilityTile     - the visibility tile
      * @param clearPixelStrategy - strategy how clear pixels are determined
      * @param useConstantWv      - use constant Wv if set
+     * @param wvRetrieval        - the water vapour retrieval method (see {@link ScapeMAcKernel})
+     * @param wvFtol             - absolute tolerance of the Brent water vapour retrieval
      * @param toaArrayCell       - the TOA cell array
      * @param hsurfArray         - the elevation cell array
      * @param cosSzaArray        - the cos(SZA) cell array
      * @param cosSzaMeanCell     - the cos(SZA) cell mean value
-     * @param reflImg            - the 'reflectance images' for all wavelengths
-     * @param radianceTile13     - radiance tile at band 13
-     * @param radianceTile14     - radiance tile at band 14
+     * @param reflImg            - the 'reflectance images' for all wavelengths, may be null if useConstantWv is set
+     * @param radianceTile13     - radiance tile at band 13, may be null if useConstantWv is set
+     * @param radianceTile14     - radiance tile at band 14, may be null if useConstantWv is set
      * @param scapeMLut          - the atmospheric look-up table
-     * @param lpw                - the 'lpw' term of radiative transfer equation
-     * @param e0tw               - the 'e0tw' term of radiative transfer equation
-     * @param ediftw             - the 'ediftw' term of radiative transfer equation
-     * @param tDirD              - the 'tDirD' term of radiative transfer equation
-     * @param sab                - the 'sab' term of radiative transfer equation
-     * @return ScapeMResult: holding water vapour and atmospheric corrected reflectances (see {@link ScapeMResult})
+     * @param cube               - the terms of radiative transfer equation at the LUT nodes (see {@link ScapeMAtmosphereCube})
+     * @param wvTile             - the water vapour target tile, null if not written
+     * @param reflTiles          - the reflectance target tiles, null for bands not written
+     * @param parallelRows       - if set, the rows of the cell are processed in parallel in the common fork-join pool
      */
-    static ScapeMResult computeAcResult(Rectangle rect,
-                                        Tile visibilityTile,
-                                        ClearPixelStrategy clearPixelStrategy,
-                                        boolean useConstantWv,
-                                        double[][][] toaArrayCell,
-                                        double[][] hsurfArray,
-                                        double[][] cosSzaArray,
-                                        double cosSzaMeanCell,
-                                        double[][][] reflImg,
-                                        Tile radianceTile13,
-                                        Tile radianceTile14,
-                                        ScapeMLut scapeMLut,
-                                        double[][][][] lpw,
-                                        double[][][][] e0tw,
-                                        double[][][][] ediftw,
-                                        double[][][][] tDirD,
-                                        double[][][][] sab) {
-
-        final int dimWv = scapeMLut.getCwvArrayLUT().length;
-        final int dimVis = scapeMLut.getVisArrayLUT().length;
-        final int dimHsurf = scapeMLut.getHsfArrayLUT().length;
-
-        ScapeMResult scapeMResult = new ScapeMResult(ScapeMConstants.L1_BAND_NUM, rect.width, rect.height);
-
-        for (int y = rect.y; y < rect.y + rect.height; y++) {
-            for (int x = rect.x; x < rect.x + rect.width; x++) {
-
-                final double pix1 = reflImg[1][x - rect.x][y - rect.y];
-                final double pix2 = reflImg[2][x - rect.x][y - rect.y];
-                final double demPix = hsurfArray[x - rect.x][y - rect.y];
-                final double visPix = visibilityTile.getSampleDouble(x, y);
-
-                if (clearPixelStrategy.isValid(x, y)) {
-                    final double ratioMeris =
-                            radianceTile14.getSampleDouble(x, y) / radianceTile13.getSampleDouble(x, y);
-                    final double[] reflPix = new double[]{pix1, pix2};
-
-                    final double[] hsfArrayLUT = scapeMLut.getHsfArrayLUT();
-                    int hsIndex = 0;
-                    for (int i = 0; i < dimHsurf - 1; i++) {
-                        if (demPix >= hsfArrayLUT[i]) {
-                            hsIndex = i;
-                        }
-                    }
-                    double hsP = 0.0;
-                    if (hsIndex >= 0 && hsIndex < hsfArrayLUT.length - 1) {
-                        hsP = (demPix - hsfArrayLUT[hsIndex]) /
-                                (hsfArrayLUT[hsIndex + 1] - hsfArrayLUT[hsIndex]);
-                    }
-
-                    int visIndex = 0;
-                    final double[] visArrayLUT = scapeMLut.getVisArrayLUT();
-                    for (int i = 0; i < dimVis - 1; i++) {
-                        if (visPix >= visArrayLUT[i]) {
-                            visIndex = i;
-                        }
-                    }
-
-                    double visP = 0.0;
-                    if (visIndex >= 0 && visIndex < visArrayLUT.length - 1) {
-                        visP = (visPix - visArrayLUT[visIndex]) /
-                                (visArrayLUT[visIndex + 1] - visArrayLUT[visIndex]);
-                    }
-
-                    double[][] lpwSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        for (int i = 0; i < dimWv; i++) {
-                            lpwSp[bandId][i] = (1.0 - visP) * (1.0 - hsP) * lpw[bandId][i][visIndex][hsIndex] +
-                                    hsP * (1.0 - visP) * lpw[bandId][i][visIndex][hsIndex + 1] +
-                                    (1.0 - hsP) * visP * lpw[bandId][i][visIndex + 1][hsIndex] +
-                                    visP * hsP * lpw[bandId][i][visIndex + 1][hsIndex + 1];
-                        }
-
-                    }
-
-                    // adjust etw:
-                    double[][][][] etw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHsurf];
-                    final double cosSza = cosSzaArray[x - rect.x][y - rect.y];
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        for (int i = 0; i < scapeMLut.getCwvArrayLUT().length; i++) {
-                            for (int j = 0; j < visArrayLUT.length; j++) {
-                                for (int k = 0; k < hsfArrayLUT.length; k++) {
-                                    // (1.- tdir_d * mus) * mun_term_arr[ind]:
-                                    final double sum1 = (1.0 - tDirD[bandId][i][j][k] * cosSzaMeanCell) * 1.0;   // this is less precise, but follows IDL
-//                                    final double sum1 = (1.0 - tDirD[bandId][i][j][k] * cosSza) * 1.0;
-                                    // tdir_d * mus_il_arr[ind] :
-                                    final double sum2 = tDirD[bandId][i][j][k] * cosSza;
-                                    // e0tw * mus_il_arr[ind] :
-                                    final double sum3 = e0tw[bandId][i][j][k] * cosSza;
-
-                                    etw[bandId][i][j][k] = sum3 + ediftw[bandId][i][j][k] * (sum2 + sum1);
-                                }
-                            }
-                        }
-                    }
-
-                    double[][] etwSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
-                    double[][] sabSp = new double[ScapeMConstants.L1_BAND_NUM][dimWv];
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        for (int i = 0; i < dimWv; i++) {
-                            etwSp[bandId][i] = (1.0 - visP) * (1.0 - hsP) * etw[bandId][i][visIndex][hsIndex] +
-                                    hsP * (1.0 - visP) * etw[bandId][i][visIndex][hsIndex + 1] +
-                                    (1.0 - hsP) * visP * etw[bandId][i][visIndex + 1][hsIndex] +
-                                    visP * hsP * etw[bandId][i][visIndex + 1][hsIndex + 1];
-                            sabSp[bandId][i] = (1.0 - visP) * (1.0 - hsP) * sab[bandId][i][visIndex][hsIndex] +
-                                    hsP * (1.0 - visP) * sab[bandId][i][visIndex][hsIndex + 1] +
-                                    (1.0 - hsP) * visP * sab[bandId][i][visIndex + 1][hsIndex] +
-                                    visP * hsP * sab[bandId][i][visIndex + 1][hsIndex + 1];
-                        }
-
-                    }
-
-                    double[][][] parAtmH = new double[3][2][dimWv];
-                    for (int i = 0; i < 2; i++) {
-                        for (int j = 0; j < dimWv; j++) {
-                            parAtmH[0][i][j] = lpwSp[i + 13][j];
-                            parAtmH[1][i][j] = etwSp[i + 13][j];
-                            parAtmH[2][i][j] = sabSp[i + 13][j];
-                        }
-                    }
-
-                    // now water vapour:
-                    // all numbers in this test taken from IDL test run, cellIndexX=1, cellIndexY=0
-                    double wvResult = ScapeMConstants.WV_INIT;
-                    double wvP = ScapeMConstants.WV_INIT;
-                    int wvInf = dimWv / 2;
-                    if (!useConstantWv) {
-                        WaterVapourFunction wvFunction = new WaterVapourFunction();
-                        wvFunction.setMerisRatio(ratioMeris);
-                        wvFunction.setWvGr2(scapeMLut.getCwvArrayLUT());
-                        wvFunction.setParAtmH(parAtmH);
-                        wvFunction.setReflPix(reflPix);
-
-                        final double wvLower = scapeMLut.getCwvMin();
-                        final double wvUpper = scapeMLut.getCwvMax();
-
-                        BrentSolver brentSolver = new BrentSolver(ScapeMConstants.FTOL);
-                        try {
-                            wvResult = brentSolver.solve(ScapeMConstants.MAXITER, wvFunction,
-                                    wvLower, wvUpper);
-                            wvInf = wvFunction.getWvInf();
-                            wvP = wvFunction.getWvP();
-                        } catch (NoBracketingException e) {
-                            // retrieval outside valid range, set to default value
-                            wvResult = ScapeMConstants.WV_INIT;
-                            wvP = ScapeMConstants.WV_INIT;
-                            wvInf = dimWv / 2;
-                            // todo: check if flag should be raised
-//                    e.printStackTrace();
-                        }
-                    }
-                    scapeMResult.setWvPixel(x - rect.x, y - rect.y, wvResult);
-
-                    double[] lpwAc = new double[ScapeMConstants.L1_BAND_NUM];
-                    double[] etwAc = new double[ScapeMConstants.L1_BAND_NUM];
-                    double[] sabAc = new double[ScapeMConstants.L1_BAND_NUM];
-                    for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
-                        if (i != 10 && i != 14) {
-                            lpwAc[i] = lpwSp[i][wvInf] + wvP * (lpwSp[i][wvInf + 1] - lpwSp[i][wvInf]);
-                            etwAc[i] = etwSp[i][wvInf] + wvP * (etwSp[i][wvInf + 1] - etwSp[i][wvInf]);
-                            sabAc[i] = sabSp[i][wvInf] + wvP * (sabSp[i][wvInf + 1] - sabSp[i][wvInf]);
-
-                            final double xTerm =
-                                    Math.PI * (toaArrayCell[i][x - rect.x][y - rect.y] - lpwAc[i]) / etwAc[i];
-                            final double refl = xTerm / (1.0 + sabAc[i] * xTerm);
-                            scapeMResult.setReflPixel(i, x - rect.x, y - rect.y, refl);
-                        }
-                    }
-                } else {
-                    // invalid due to one or more of the above cases
-                    for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
-                        scapeMResult.setReflPixel(i, x - rect.x, y - rect.y, ScapeMConstants.AC_NODATA);
-                    }
-                    scapeMResult.setWvPixel(x - rect.x, y - rect.y, ScapeMConstants.AC_NODATA);
-                }
-            }
-
+    static void computeAcResult(Rectangle rect,
+                                Tile visibilityTile,
+                                ClearPixelStrategy clearPixelStrategy,
+                                boolean useConstantWv,
+                                String wvRetrieval,
+                                double wvFtol,
+                                double[][][] toaArrayCell,
+                                double[][] hsurfArray,
+                                double[][] cosSzaArray,
+                                double cosSzaMeanCell,
+                                double[][][] reflImg,
+                                Tile radianceTile13,
+                                Tile radianceTile14,
+                                ScapeMLut scapeMLut,
+                                ScapeMAtmosphereCube cube,
+                                Tile wvTile,
+                                Tile[] reflTiles,
+                                boolean parallelRows) {
+
+        final ScapeMAcRowsTask acRowsTask = new ScapeMAcRowsTask(rect, visibilityTile, clearPixelStrategy,
+                                                                 useConstantWv, wvRetrieval, wvFtol,
+                                                                 toaArrayCell, hsurfArray, cosSzaArray, cosSzaMeanCell,
+                                                                 reflImg, radianceTile13, radianceTile14,
+                                                                 scapeMLut, cube, wvTile, reflTiles);
+        if (parallelRows) {
+            ForkJoinPool.commonPool().invoke(acRowsTask);
+        } else {
+            acRowsTask.computeRows();
         }
-        return scapeMResult;
     }
 
     // computes the 'refined' visibility value for the given cell:
@@ -658,7 +540,10 @@ public class ScapeMAlgorithm {
                                                    double hsurfMeanCell,
                                                    double wvInit,
                                                    double cosSzaMeanCell,
-                                                   ScapeMLut scapeMLut) {
+                                                   ScapeMLut scapeMLut,
+                                                   double powellFtol,
+                                                   int nEMVeg,
+                                                   int limRefSets) {
 
         final int numSpec = 2;
         final int numX = numSpec * ScapeMConstants.NUM_REF_PIXELS + 1;
@@ -694,9 +579,6 @@ public class ScapeMAlgorithm {
             xi[i][i] = 1.0;
         }
 
-        final int limRefSets = 1;    // for AOT_time_flg eq 1, see .inp file
-        final int nEMVeg = 3;    // for AOT_time_flg eq 1, see .inp file
-
         final int nRefSets = Math.min(refPixels[0].length, limRefSets);
 
         double[] visArr = new double[nRefSets];
@@ -726,7 +608,7 @@ public class ScapeMAlgorithm {
                 // double fmin = Powell.fmin(xVector, xi, ftol, function1);
                 double fmin = Powell.fmin(xVector,
                         xiInput,
-                        ScapeMConstants.POWELL_FTOL,
+                        powellFtol,
                         toaMinimization);
                 double[] chiSqr = toaMinimization.getChiSquare();
                 double chiSqrMean = ScapeMUtils.getMeanDouble1D(chiSqr);
@@ -744,7 +626,7 @@ public class ScapeMAlgorithm {
                     toaMinimization.setWeight(weight);
                     fmin = Powell.fmin(xVector,
                             xiInput,
-                            ScapeMConstants.POWELL_FTOL,
+                            powellFtol,
                             toaMinimization);
                 }
                 visArrAux[j] = xVector[numX - 1];
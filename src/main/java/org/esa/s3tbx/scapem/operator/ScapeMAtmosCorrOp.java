@@ -1,12 +1,12 @@
 package org.esa.s3tbx.scapem.operator;
 
 import com.bc.ceres.core.ProgressMonitor;
-import org.esa.s3tbx.meris.brr.HelperFunctions;
 import org.esa.s3tbx.scapem.ScapeMConstants;
 import org.esa.s3tbx.scapem.io.LutAccess;
 import org.esa.s3tbx.scapem.util.ClearLandAndWaterPixelStrategy;
 import org.esa.s3tbx.scapem.util.ClearPixelStrategy;
 import org.esa.s3tbx.scapem.util.ClearLandPixelStrategy;
+import org.esa.s3tbx.scapem.util.ScapeMGeometryProvider;
 import org.esa.s3tbx.scapem.util.ScapeMUtils;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.GeoCoding;
@@ -21,11 +21,13 @@ import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.gpf.annotations.TargetProduct;
 import org.esa.snap.core.util.ProductUtils;
-import org.esa.snap.dataio.envisat.EnvisatConstants;
+import org.esa.snap.core.util.SystemUtils;
 
 import java.awt.*;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Operator for MERIS atmospheric correction with SCAPE-M algorithm: AC part.
@@ -54,6 +56,16 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
             label = "Use constant water vapour value of 2 g/cm^2",
             defaultValue = "false")
     private boolean useConstantWv;
+    @Parameter(description = "Water vapour retrieval method: Brent root finding, or inversion of the band ratio " +
+            "tabulated at the LUT water vapour nodes (optionally refined by Newton steps)",
+            label = "Water vapour retrieval method",
+            valueSet = {ScapeMConstants.WV_RETRIEVAL_BRENT,
+                    ScapeMConstants.WV_RETRIEVAL_TABLE,
+                    ScapeMConstants.WV_RETRIEVAL_TABLE_NEWTON},
+            defaultValue = ScapeMConstants.WV_RETRIEVAL_BRENT)
+    private String wvRetrieval;
+    @Parameter(description = "Absolute tolerance of the Brent water vapour retrieval", defaultValue = "1.E-4")
+    private double wvFtol;
     @Parameter(description = "If set, use GETASSE30 DEM, otherwise get altitudes from product TPGs",
             label = "Use GETASSE30 DEM",
             defaultValue = "false")
@@ -66,6 +78,25 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
             label = "Write 443nm reflectance band",
             defaultValue = "false")
     private boolean outputReflBand2;
+    @Parameter(description = "If set, the pixel rows of a cell are corrected in parallel. Useful if there are " +
+            "fewer cells than processor cores, e.g. for small subsets or RR products.",
+            label = "Parallel AC within cells",
+            defaultValue = "false")
+    private boolean parallelAcRows;
+    @Parameter(description = "Names of the AC bands to write, e.g. 'water_vapour,refl_13'. Terms are computed " +
+            "for these bands only. If not set, water vapour and the standard reflectance bands are written.",
+            label = "AC output bands")
+    private String[] outputBands;
+    @Parameter(description = "If set, AOT550 is derived from the visibility in the same tile pass as the AC",
+            label = "Compute AOT550",
+            defaultValue = "false")
+    private boolean computeAot;
+    @Parameter(description = "Visibility to AOT conversion: evaluation of the log-log fits, or linear " +
+            "interpolation of the fits tabulated over ln(visibility)",
+            label = "Visibility to AOT conversion",
+            valueSet = {ScapeMConstants.AOT_CONVERSION_FIT, ScapeMConstants.AOT_CONVERSION_TABLE},
+            defaultValue = ScapeMConstants.AOT_CONVERSION_FIT)
+    private String aotConversion;
     @SourceProduct(alias = "source")
     private Product sourceProduct;
     @SourceProduct(alias = "cloud")
@@ -75,26 +106,34 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
     @TargetProduct
     private Product targetProduct;
     private ElevationModel elevationModel;
+    private ScapeMGeometryProvider geometryProvider;
     private Band[] reflBands;
     private Band[] rhoToaBands;
+    private Band aot550Band;
+    private boolean useAotTable;
+    private boolean writeWv;
+    private boolean computeAc;
+    private boolean[] cubeBands;
+    private boolean[] toaBands;
+
+    // bands needed for the 'reflectance image' used in the water vapour retrieval
+    private static final boolean[] REFL_IMAGE_BANDS = getBandSelection(12, 13);
+
+    private final AtomicInteger numProcessedCells = new AtomicInteger();
+    private final AtomicInteger numSkippedCells = new AtomicInteger();
 
     @Override
     public void initialize() throws OperatorException {
         elevationModel = ScapeMUtils.getElevationModel(useDEM);
+        if (geometryProvider == null) {
+            geometryProvider = new ScapeMGeometryProvider(sourceProduct);
+        }
         createTargetProduct();
     }
 
     @Override
     public void computeTileStack(Map<Band, Tile> targetTiles, Rectangle targetRect, ProgressMonitor pm) throws OperatorException {
-        final GeoCoding geoCoding = sourceProduct.getSceneGeoCoding();
-
-        final Tile szaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME), targetRect);
-        final Tile vzaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME), targetRect);
-        final Tile saaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME), targetRect);
-        final Tile vaaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME), targetRect);
-
-        Tile altitudeTile = getAltitudeTile(targetRect, sourceProduct, useDEM);
-
+        // check the cloud flags first: nothing else is requested for cells without any clear pixel
         ClearPixelStrategy clearPixelStrategy;
         if (computeOverWater) {
             clearPixelStrategy = new ClearLandAndWaterPixelStrategy();
@@ -103,128 +142,116 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
         }
         clearPixelStrategy.setTile(getSourceTile(cloudProduct.getBandAt(0), targetRect));
 
+        Tile[] reflTiles = getTargetTileGroup(reflBands, targetTiles);
+        Tile[] rhoToaTiles = null;
+        if (outputRhoToa) {
+            rhoToaTiles = getTargetTileGroup(rhoToaBands, targetTiles);
+        }
+        final Tile wvTile = writeWv ? targetTiles.get(targetProduct.getBand(ScapeMConstants.WATER_VAPOUR_BAND_NAME)) : null;
+        final Tile aot550Tile = computeAot ? targetTiles.get(aot550Band) : null;
+
+        final boolean cellHasClearPixels = computeAc && ScapeMAlgorithm.hasClearPixels(targetRect, clearPixelStrategy);
+
+        // visibility and surface height are shared by the AOT conversion and the AC
+        Tile visibilityTile = null;
+        double[][] hsurfArrayCell = null;
+        if (cellHasClearPixels || aot550Tile != null) {
+            final Band visibilityBand = visibilityProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
+            visibilityTile = getSourceTile(visibilityBand, targetRect);
+            hsurfArrayCell = getHsurfArrayCell(targetRect);
+        }
+        if (aot550Tile != null) {
+            ScapeMAlgorithm.setAot550Samples(aot550Tile, targetRect, visibilityTile, hsurfArrayCell, scapeMLut,
+                                             useAotTable);
+        }
+
+        if (!cellHasClearPixels) {
+            if (computeAc) {
+                numSkippedCells.incrementAndGet();
+            }
+            setAcNoDataSamples(wvTile, reflTiles, targetRect);
+            if (!outputRhoToa) {
+                return;
+            }
+        } else {
+            numProcessedCells.incrementAndGet();
+        }
+
+        // the AC is the last consumer of the cell geometry
+        final ScapeMGeometryProvider.TileGeometry tileGeometry = geometryProvider.releaseCellGeometry(targetRect);
+
         Tile[] radianceTiles = new Tile[ScapeMConstants.L1_BAND_NUM];
         Band[] radianceBands = new Band[ScapeMConstants.L1_BAND_NUM];
         double[] solirr = new double[ScapeMConstants.L1_BAND_NUM];
         for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
             radianceBands[bandId] = sourceProduct.getBand(RADIANCE_BAND_PREFIX + "_" + (bandId + 1));
-            radianceTiles[bandId] = getSourceTile(radianceBands[bandId], targetRect);
+            if (toaBands[bandId] || (cubeBands[bandId] && !useConstantWv)) {
+                radianceTiles[bandId] = getSourceTile(radianceBands[bandId], targetRect);
+            }
             solirr[bandId] = radianceBands[bandId].getSolarFlux() * 1.E-4;
         }
 
-        Band visibilityBand = visibilityProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
-
-        final int centerX = targetRect.x + targetRect.width / 2;
-        final int centerY = targetRect.y + targetRect.height / 2;
-
-        final double vza = vzaTile.getSampleDouble(centerX, centerY);
-        final double sza = szaTile.getSampleDouble(centerX, centerY);
-        final double vaa = vaaTile.getSampleDouble(centerX, centerY);
-        final double saa = saaTile.getSampleDouble(centerX, centerY);
-        final double phi = HelperFunctions.computeAzimuthDifference(vaa, saa);
-
-        double[][] hsurfArrayCell;
         try {
-            if (useDEM && altitudeTile == null) {
-                hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, elevationModel, scapeMLut);
-            } else {
-                hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, altitudeTile, scapeMLut);
-            }
-
-            final double hsurfMeanCell = ScapeMAlgorithm.getCellMean(hsurfArrayCell, targetRect, clearPixelStrategy);
-            final double[][] cosSzaArrayCell = ScapeMAlgorithm.getCosSzaArrayCell(targetRect, szaTile);
-            final double cosSzaMeanCell = ScapeMAlgorithm.getCellMean(cosSzaArrayCell, targetRect, clearPixelStrategy);
+            final double[][] cosSzaArrayCell = tileGeometry.getCosSza();
 
             final int doy = sourceProduct.getStartTime().getAsCalendar().get(Calendar.DAY_OF_YEAR);
-            double[][][] toaArrayCell = new double[ScapeMConstants.L1_BAND_NUM][targetRect.width][targetRect.height];
+            double[][][] toaArrayCell = new double[ScapeMConstants.L1_BAND_NUM][][];
             for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                toaArrayCell[bandId] = ScapeMAlgorithm.getToaArrayCell(radianceTiles[bandId], targetRect, doy);
+                if (toaBands[bandId]) {
+                    toaArrayCell[bandId] = ScapeMAlgorithm.getToaArrayCell(radianceTiles[bandId], targetRect, doy);
+                }
             }
 
-            Tile[] reflTiles = getTargetTileGroup(reflBands, targetTiles);
-            Tile[] rhoToaTiles = null;
-            if (outputRhoToa) {
-                rhoToaTiles = getTargetTileGroup(rhoToaBands, targetTiles);
-            }
+            if (cellHasClearPixels) {
+                final double vza = tileGeometry.getCenterVza();
+                final double sza = tileGeometry.getCenterSza();
+                final double phi = tileGeometry.getCenterPhi();
 
-            final int dimWv = scapeMLut.getCwvArrayLUT().length;
-            final int dimVis = scapeMLut.getVisArrayLUT().length;
-            final int dimHurf = scapeMLut.getHsfArrayLUT().length;
-            double[][][][] lpw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];     // [15][6][7][3]
-            double[][][][] e0tw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
-            double[][][][] ediftw = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
-            double[][][][] sab = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
-            double[][][][] tDirD = new double[ScapeMConstants.L1_BAND_NUM][dimWv][dimVis][dimHurf];
+                final double hsurfMeanCell = ScapeMAlgorithm.getCellMean(hsurfArrayCell, targetRect, clearPixelStrategy);
+                final double cosSzaMeanCell = ScapeMAlgorithm.getCellMean(cosSzaArrayCell, targetRect, clearPixelStrategy);
 
-            for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                for (int i = 0; i < dimWv; i++) {
-                    for (int j = 0; j < dimVis; j++) {
-                        for (int k = 0; k < dimHurf; k++) {
-                            double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(),
-                                    vza, sza, phi,
-                                    scapeMLut.getHsfArrayLUT()[k],
-                                    scapeMLut.getVisArrayLUT()[j],
-                                    scapeMLut.getCwvArrayLUT()[i]);
-
-                            lpw[bandId][i][j][k] = fInt[bandId][0];
-                            e0tw[bandId][i][j][k] = fInt[bandId][1];
-                            ediftw[bandId][i][j][k] = fInt[bandId][2];
-                            sab[bandId][i][j][k] = fInt[bandId][4];
-                            tDirD[bandId][i][j][k] =
-                                    fInt[bandId][1] / (fInt[bandId][5] * (1.0 + fInt[bandId][3]) * solirr[bandId]);
-                        }
-                    }
-                }
-            }
+                final ScapeMAtmosphereCube cube = ScapeMAtmosphereCube.create(scapeMLut, vza, sza, phi, solirr, cubeBands);
 
-            final Tile visibilityTile = getSourceTile(visibilityBand, targetRect);
-            ScapeMResult acResult;
-            double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(),
-                    vza, sza, phi, hsurfMeanCell,
-                    ScapeMConstants.VIS_INIT, ScapeMConstants.WV_INIT);
-            double[][][] reflImage = ScapeMAlgorithm.getReflImage(fInt, toaArrayCell, cosSzaArrayCell);
-
-            acResult = ScapeMAlgorithm.computeAcResult(targetRect,
-                    visibilityTile,
-                    clearPixelStrategy,
-                    useConstantWv,
-                    toaArrayCell,
-                    hsurfArrayCell,
-                    cosSzaArrayCell,
-                    cosSzaMeanCell,
-                    reflImage,
-                    radianceTiles[13],
-                    radianceTiles[14],
-                    scapeMLut,
-                    lpw, e0tw, ediftw, tDirD, sab);
-
-
-            final Tile wvTile = targetTiles.get(targetProduct.getBand(ScapeMConstants.WATER_VAPOUR_BAND_NAME));
-            for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-                for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                    wvTile.setSample(x, y, acResult.getWvPixel(x - targetRect.x, y - targetRect.y));
-                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                        final boolean writeOptionalBands = (bandId == 1 && outputReflBand2);
-                        if ((bandId != 1 && bandId != 10 && bandId != 14) || writeOptionalBands) {
-                            Tile reflTile = reflTiles[bandId];
-                            reflTile.setSample(x, y, acResult.getReflPixel(bandId, x - targetRect.x, y - targetRect.y));
-                        }
-                    }
+                double[][][] reflImage = null;
+                if (!useConstantWv) {
+                    double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(),
+                            vza, sza, phi, hsurfMeanCell,
+                            ScapeMConstants.VIS_INIT, ScapeMConstants.WV_INIT, REFL_IMAGE_BANDS);
+                    reflImage = ScapeMAlgorithm.getReflImage(fInt, toaArrayCell, cosSzaArrayCell);
                 }
+
+                ScapeMAlgorithm.computeAcResult(targetRect,
+                        visibilityTile,
+                        clearPixelStrategy,
+                        useConstantWv,
+                        wvRetrieval,
+                        wvFtol,
+                        toaArrayCell,
+                        hsurfArrayCell,
+                        cosSzaArrayCell,
+                        cosSzaMeanCell,
+                        reflImage,
+                        radianceTiles[13],
+                        radianceTiles[14],
+                        scapeMLut,
+                        cube,
+                        wvTile,
+                        reflTiles,
+                        parallelAcRows);
             }
             if (outputRhoToa) {
-                for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-                    for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                        double cosSza = cosSzaArrayCell[x - targetRect.x][y - targetRect.y];
-                        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-                            final boolean writeOptionalBands = (bandId == 1 && outputReflBand2);
-                            if ((bandId != 1 && bandId != 10 && bandId != 14) || writeOptionalBands) {
-                                Tile rhoToaTile = rhoToaTiles[bandId];
+                for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                    final Tile rhoToaTile = rhoToaTiles[bandId];
+                    if (rhoToaTile != null) {
+                        final float[] rhoToaData = rhoToaTile.getDataBufferFloat();
+                        final double[][] toaArray = toaArrayCell[bandId];
+                        for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
+                            int index = rhoToaTile.getDataBufferIndex(targetRect.x, y);
+                            for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
+                                double cosSza = cosSzaArrayCell[x - targetRect.x][y - targetRect.y];
                                 // normalize to our rhoTOAs as e.g. from Rad2Refl...
                                 final double rhoToaFactor = Math.PI / (solirr[bandId] * cosSza);
-                                double toaArraySample =
-                                        toaArrayCell[bandId][x - targetRect.x][y - targetRect.y] * rhoToaFactor;
-                                rhoToaTile.setSample(x, y, toaArraySample);
+                                rhoToaData[index++] = (float) (toaArray[x - targetRect.x][y - targetRect.y] * rhoToaFactor);
                             }
                         }
                     }
@@ -235,26 +262,137 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
         }
     }
 
+    @Override
+    public void dispose() {
+        SystemUtils.LOG.fine("SCAPE-M atmospheric correction: " + numProcessedCells.get() + " cells processed, " +
+                                     numSkippedCells.get() + " cells without clear pixels skipped.");
+        super.dispose();
+    }
+
+    /**
+     * @return the number of cells for which no atmospheric correction was done because they have no clear pixels
+     */
+    public int getNumSkippedCells() {
+        return numSkippedCells.get();
+    }
+
+    private double[][] getHsurfArrayCell(Rectangle targetRect) {
+        final GeoCoding geoCoding = sourceProduct.getSceneGeoCoding();
+        final Tile altitudeTile = getAltitudeTile(targetRect, sourceProduct, useDEM);
+        if (useDEM && altitudeTile == null) {
+            return ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, elevationModel, scapeMLut);
+        } else {
+            return ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, altitudeTile, scapeMLut);
+        }
+    }
+
+    private void setAcNoDataSamples(Tile wvTile, Tile[] reflTiles, Rectangle targetRect) {
+        if (wvTile != null) {
+            fillNoData(wvTile, targetRect);
+        }
+        for (Tile reflTile : reflTiles) {
+            if (reflTile != null) {
+                fillNoData(reflTile, targetRect);
+            }
+        }
+    }
+
+    private static void fillNoData(Tile tile, Rectangle targetRect) {
+        final float[] data = tile.getDataBufferFloat();
+        for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
+            final int index = tile.getDataBufferIndex(targetRect.x, y);
+            Arrays.fill(data, index, index + targetRect.width, (float) ScapeMConstants.AC_NODATA);
+        }
+    }
+
     private void createTargetProduct() throws OperatorException {
         targetProduct = createCompatibleProduct(sourceProduct, "MER", "MER_L2");
 
-        Band wvBand = targetProduct.addBand(ScapeMConstants.WATER_VAPOUR_BAND_NAME, ProductData.TYPE_FLOAT32);
-        wvBand.setNoDataValue(ScapeMConstants.WATER_VAPOUR_NODATA_VALUE);
-        wvBand.setUnit("g/cm^2");
-        wvBand.setValidPixelExpression(ScapeMConstants.SCAPEM_VALID_EXPR);
+        final boolean[] defaultReflBands = new boolean[ScapeMConstants.L1_BAND_NUM];
+        for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+            // always skip bands 11 and 15, write band 2 optionally only
+            final boolean writeOptionalBands = (i == 1 && outputReflBand2);
+            defaultReflBands[i] = (i != 1 && i != 10 && i != 14) || writeOptionalBands;
+        }
+
+        final boolean[] selectedReflBands;
+        if (outputBands == null || outputBands.length == 0) {
+            writeWv = true;
+            selectedReflBands = defaultReflBands;
+        } else {
+            writeWv = false;
+            selectedReflBands = new boolean[ScapeMConstants.L1_BAND_NUM];
+            for (String bandName : outputBands) {
+                if (ScapeMConstants.WATER_VAPOUR_BAND_NAME.equals(bandName)) {
+                    writeWv = true;
+                } else {
+                    selectedReflBands[getReflBandIndex(bandName)] = true;
+                }
+            }
+        }
+
+        if (writeWv) {
+            Band wvBand = targetProduct.addBand(ScapeMConstants.WATER_VAPOUR_BAND_NAME, ProductData.TYPE_FLOAT32);
+            wvBand.setNoDataValue(ScapeMConstants.WATER_VAPOUR_NODATA_VALUE);
+            wvBand.setUnit("g/cm^2");
+            wvBand.setValidPixelExpression(ScapeMConstants.SCAPEM_VALID_EXPR);
+        }
 
-        reflBands = addBandGroup(REFL_BAND_PREFIX);
+        reflBands = addBandGroup(REFL_BAND_PREFIX, selectedReflBands);
         if (outputRhoToa) {
-            rhoToaBands = addBandGroup(TOA_BAND_PREFIX);
+            rhoToaBands = addBandGroup(TOA_BAND_PREFIX, defaultReflBands);
+        }
+        if (computeAot) {
+            aot550Band = targetProduct.addBand(ScapeMConstants.AOT550_BAND_NAME, ProductData.TYPE_FLOAT32);
+            aot550Band.setNoDataValue(ScapeMConstants.AOT_NODATA_VALUE);
+            aot550Band.setValidPixelExpression(ScapeMConstants.SCAPEM_VALID_EXPR);
+            useAotTable = ScapeMConstants.AOT_CONVERSION_TABLE.equals(aotConversion);
+        }
+
+        // determine the bands for which atmospheric terms and TOA values are needed at all
+        computeAc = writeWv;
+        for (boolean selected : selectedReflBands) {
+            computeAc |= selected;
+        }
+        final boolean retrieveWv = computeAc && !useConstantWv;
+        cubeBands = new boolean[ScapeMConstants.L1_BAND_NUM];
+        toaBands = new boolean[ScapeMConstants.L1_BAND_NUM];
+        for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
+            cubeBands[i] = selectedReflBands[i] || (retrieveWv && (i == 13 || i == 14));
+            toaBands[i] = selectedReflBands[i] || (retrieveWv && REFL_IMAGE_BANDS[i]) ||
+                    (outputRhoToa && defaultReflBands[i]);
         }
     }
 
-    private Band[] addBandGroup(String prefix) {
+    private static int getReflBandIndex(String bandName) {
+        final String prefix = REFL_BAND_PREFIX + "_";
+        if (bandName != null && bandName.startsWith(prefix)) {
+            try {
+                final int bandIndex = Integer.parseInt(bandName.substring(prefix.length())) - 1;
+                if (bandIndex >= 0 && bandIndex < ScapeMConstants.L1_BAND_NUM && bandIndex != 10 && bandIndex != 14) {
+                    return bandIndex;
+                }
+            } catch (NumberFormatException ignore) {
+                // handled below
+            }
+        }
+        throw new OperatorException("Invalid output band '" + bandName + "' - must be '" +
+                                            ScapeMConstants.WATER_VAPOUR_BAND_NAME + "' or one of " +
+                                            prefix + "1.." + prefix + "14 except " + prefix + "11.");
+    }
+
+    private static boolean[] getBandSelection(int... bandIndices) {
+        final boolean[] bands = new boolean[ScapeMConstants.L1_BAND_NUM];
+        for (int bandIndex : bandIndices) {
+            bands[bandIndex] = true;
+        }
+        return bands;
+    }
+
+    private Band[] addBandGroup(String prefix, boolean[] bandSelection) {
         Band[] bands = new Band[ScapeMConstants.L1_BAND_NUM];
         for (int i = 0; i < ScapeMConstants.L1_BAND_NUM; i++) {
-            // always skip bands 11 and 15, write band 2 optionally only
-            final boolean writeOptionalBands = (i == 1 && outputReflBand2);
-            if ((i != 1 && i != 10 && i != 14) || writeOptionalBands) {
+            if (bandSelection[i]) {
                 Band targetBand = targetProduct.addBand(prefix + "_" + (i + 1), ProductData.TYPE_FLOAT32);
                 final String srcBandName = RADIANCE_BAND_PREFIX + "_" + (i + 1);
                 ProductUtils.copySpectralBandProperties(sourceProduct.getBand(srcBandName), targetBand);
@@ -282,6 +420,10 @@ public class ScapeMAtmosCorrOp extends ScapeMMerisBasisOp {
         this.scapeMLut = scapeMLut;
     }
 
+    public void setGeometryProvider(ScapeMGeometryProvider geometryProvider) {
+        this.geometryProvider = geometryProvider;
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
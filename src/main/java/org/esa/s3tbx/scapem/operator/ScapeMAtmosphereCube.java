@@ -0,0 +1,83 @@
+package org.esa.s3tbx.scapem.operator;
+
+import org.esa.s3tbx.scapem.ScapeMConstants;
+import org.esa.s3tbx.scapem.io.LutAccess;
+
+/**
+ * Terms of the radiative transfer equation for the geometry of a 30x30km cell, given at all
+ * water vapour, visibility and elevation nodes of the atmospheric LUT.
+ *
+ * @author agent
+ */
+public class ScapeMAtmosphereCube {
+
+    // all arrays are [band][wv][vis][hsurf], e.g. [15][6][7][3], with null entries for bands not computed
+    final double[][][][] lpw;
+    final double[][][][] e0tw;
+    final double[][][][] ediftw;
+    final double[][][][] sab;
+    final double[][][][] tDirD;
+
+    private ScapeMAtmosphereCube(int dimWv, int dimVis, int dimHsurf, boolean[] bands) {
+        lpw = new double[ScapeMConstants.L1_BAND_NUM][][][];
+        e0tw = new double[ScapeMConstants.L1_BAND_NUM][][][];
+        ediftw = new double[ScapeMConstants.L1_BAND_NUM][][][];
+        sab = new double[ScapeMConstants.L1_BAND_NUM][][][];
+        tDirD = new double[ScapeMConstants.L1_BAND_NUM][][][];
+        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+            if (bands[bandId]) {
+                lpw[bandId] = new double[dimWv][dimVis][dimHsurf];
+                e0tw[bandId] = new double[dimWv][dimVis][dimHsurf];
+                ediftw[bandId] = new double[dimWv][dimVis][dimHsurf];
+                sab[bandId] = new double[dimWv][dimVis][dimHsurf];
+                tDirD[bandId] = new double[dimWv][dimVis][dimHsurf];
+            }
+        }
+    }
+
+    /**
+     * Interpolates the atmospheric LUT at all its wv/vis/hsurf nodes for the given cell geometry.
+     * Each LUT interpolation provides the terms for all selected bands at once.
+     *
+     * @param scapeMLut - the atmospheric look-up table
+     * @param vza       - cell centre view zenith angle
+     * @param sza       - cell centre sun zenith angle
+     * @param phi       - cell centre azimuth difference
+     * @param solirr    - the solar irradiances for all bands
+     * @param bands     - the bands for which the terms are needed
+     * @return the atmosphere cube
+     */
+    static ScapeMAtmosphereCube create(ScapeMLut scapeMLut, double vza, double sza, double phi, double[] solirr,
+                                       boolean[] bands) {
+        final double[] cwvArrayLUT = scapeMLut.getCwvArrayLUT();
+        final double[] visArrayLUT = scapeMLut.getVisArrayLUT();
+        final double[] hsfArrayLUT = scapeMLut.getHsfArrayLUT();
+        final ScapeMAtmosphereCube cube =
+                new ScapeMAtmosphereCube(cwvArrayLUT.length, visArrayLUT.length, hsfArrayLUT.length, bands);
+
+        for (int i = 0; i < cwvArrayLUT.length; i++) {
+            for (int j = 0; j < visArrayLUT.length; j++) {
+                for (int k = 0; k < hsfArrayLUT.length; k++) {
+                    double[][] fInt = LutAccess.interpolAtmParamLut(scapeMLut.getAtmParamLut(),
+                                                                    vza, sza, phi,
+                                                                    hsfArrayLUT[k],
+                                                                    visArrayLUT[j],
+                                                                    cwvArrayLUT[i],
+                                                                    bands);
+                    for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                        if (!bands[bandId]) {
+                            continue;
+                        }
+                        cube.lpw[bandId][i][j][k] = fInt[bandId][0];
+                        cube.e0tw[bandId][i][j][k] = fInt[bandId][1];
+                        cube.ediftw[bandId][i][j][k] = fInt[bandId][2];
+                        cube.sab[bandId][i][j][k] = fInt[bandId][4];
+                        cube.tDirD[bandId][i][j][k] =
+                                fInt[bandId][1] / (fInt[bandId][5] * (1.0 + fInt[bandId][3]) * solirr[bandId]);
+                    }
+                }
+            }
+        }
+        return cube;
+    }
+}
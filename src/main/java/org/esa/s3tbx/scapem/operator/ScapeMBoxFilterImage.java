@@ -0,0 +1,75 @@
+package org.esa.s3tbx.scapem.operator;
+
+import javax.media.jai.AreaOpImage;
+import javax.media.jai.BorderExtender;
+import java.awt.*;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Box (moving average) filter of a single band image with a square kernel, equivalent to a JAI convolution with a
+ * constant kernel of the same size. The filter is separable and computed with running sums along rows and columns,
+ * so the cost per pixel does not depend on the kernel size.
+ *
+ * @author agent
+ */
+class ScapeMBoxFilterImage extends AreaOpImage {
+
+    private final int kernelSize;
+
+    /**
+     * @param source         - the single band source image
+     * @param kernelSize     - the kernel width and height in pixels
+     * @param borderExtender - the border extender, as for the JAI convolution
+     */
+    ScapeMBoxFilterImage(RenderedImage source, int kernelSize, BorderExtender borderExtender) {
+        // same padding as a KernelJAI of this size, i.e. key element at kernelSize / 2
+        super(source, null, null, true, borderExtender,
+              kernelSize / 2, kernelSize - 1 - kernelSize / 2,
+              kernelSize / 2, kernelSize - 1 - kernelSize / 2);
+        this.kernelSize = kernelSize;
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+        final int width = destRect.width;
+        final int height = destRect.height;
+        final int sourceWidth = width + kernelSize - 1;
+        final int sourceHeight = height + kernelSize - 1;
+        final double[] sourceSamples = sources[0].getSamples(destRect.x - leftPadding, destRect.y - topPadding,
+                                                             sourceWidth, sourceHeight, 0, (double[]) null);
+
+        // horizontal pass over all source rows
+        final double[] rowSums = new double[sourceHeight * width];
+        for (int y = 0; y < sourceHeight; y++) {
+            final int sourceOffset = y * sourceWidth;
+            final int rowOffset = y * width;
+            double sum = 0.0;
+            for (int i = 0; i < kernelSize; i++) {
+                sum += sourceSamples[sourceOffset + i];
+            }
+            rowSums[rowOffset] = sum;
+            for (int x = 1; x < width; x++) {
+                sum += sourceSamples[sourceOffset + x + kernelSize - 1] - sourceSamples[sourceOffset + x - 1];
+                rowSums[rowOffset + x] = sum;
+            }
+        }
+
+        // vertical pass
+        final float[] targetSamples = new float[width * height];
+        final double norm = 1.0 / (kernelSize * kernelSize);
+        for (int x = 0; x < width; x++) {
+            double sum = 0.0;
+            for (int i = 0; i < kernelSize; i++) {
+                sum += rowSums[i * width + x];
+            }
+            targetSamples[x] = (float) (sum * norm);
+            for (int y = 1; y < height; y++) {
+                sum += rowSums[(y + kernelSize - 1) * width + x] - rowSums[(y - 1) * width + x];
+                targetSamples[y * width + x] = (float) (sum * norm);
+            }
+        }
+        dest.setSamples(destRect.x, destRect.y, width, height, 0, targetSamples);
+    }
+}
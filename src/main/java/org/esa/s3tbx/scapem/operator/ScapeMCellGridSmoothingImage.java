@@ -0,0 +1,115 @@
+package org.esa.s3tbx.scapem.operator;
+
+import org.esa.snap.core.image.ResolutionLevel;
+import org.esa.snap.core.image.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.*;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+
+/**
+ * Box filter of a gap-filled cell grid, computed directly from the cell values. As the grid is constant within each
+ * cell, the filtered value of a pixel is the mean of the cell values weighted by the overlap of the filter window
+ * with each cell, separately in x and y. For a kernel of cell size, at most 2x2 cells contribute.
+ * The result equals {@link ScapeMBoxFilterImage} with BORDER_COPY applied to the full resolution cell image.
+ *
+ * @author agent
+ */
+class ScapeMCellGridSmoothingImage extends SingleBandedOpImage {
+
+    private final ScapeMGapFill.ScapeMGapFilledImage cellGridImage;
+    private final int kernelSize;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int sceneWidth;
+    private final int sceneHeight;
+
+    /**
+     * @param cellGridImage - the level 0 gap-filled cell grid image
+     * @param kernelSize    - the kernel width and height in level 0 pixels
+     * @param tileSize      - the tile size of this image, independent of the cell size
+     * @param level         - the resolution level, pixels of lower levels are sampled from the level 0 result
+     */
+    ScapeMCellGridSmoothingImage(ScapeMGapFill.ScapeMGapFilledImage cellGridImage, int kernelSize,
+                                 Dimension tileSize, ResolutionLevel level) {
+        super(DataBuffer.TYPE_FLOAT, cellGridImage.getWidth(), cellGridImage.getHeight(), tileSize, null, level);
+        this.cellGridImage = cellGridImage;
+        this.kernelSize = kernelSize;
+        cellWidth = cellGridImage.getCellWidth();
+        cellHeight = cellGridImage.getCellHeight();
+        sceneWidth = cellGridImage.getWidth();
+        sceneHeight = cellGridImage.getHeight();
+    }
+
+    @Override
+    protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+        final float[][] cellValues = cellGridImage.getCellValues();
+
+        final int maxCellsX = (kernelSize + cellWidth - 2) / cellWidth + 1;
+        final int maxCellsY = (kernelSize + cellHeight - 2) / cellHeight + 1;
+        final int[] firstCellX = new int[destRect.width];
+        final int[] firstCellY = new int[destRect.height];
+        final double[] weightsX = new double[destRect.width * maxCellsX];
+        final double[] weightsY = new double[destRect.height * maxCellsY];
+        for (int i = 0; i < destRect.width; i++) {
+            firstCellX[i] = computeAxisWeights(Math.min(getSourceX(destRect.x + i), sceneWidth - 1), cellWidth,
+                                               sceneWidth, weightsX, i * maxCellsX);
+        }
+        for (int j = 0; j < destRect.height; j++) {
+            firstCellY[j] = computeAxisWeights(Math.min(getSourceY(destRect.y + j), sceneHeight - 1), cellHeight,
+                                               sceneHeight,
+                                               weightsY, j * maxCellsY);
+        }
+
+        final double norm = 1.0 / (kernelSize * kernelSize);
+        final float[] elems = new float[destRect.width * destRect.height];
+        int index = 0;
+        for (int j = 0; j < destRect.height; j++) {
+            for (int i = 0; i < destRect.width; i++) {
+                double sum = 0.0;
+                for (int cx = 0; cx < maxCellsX; cx++) {
+                    final double wx = weightsX[i * maxCellsX + cx];
+                    if (wx > 0.0) {
+                        final float[] cellColumn = cellValues[firstCellX[i] + cx];
+                        for (int cy = 0; cy < maxCellsY; cy++) {
+                            final double wy = weightsY[j * maxCellsY + cy];
+                            if (wy > 0.0) {
+                                sum += wx * wy * cellColumn[firstCellY[j] + cy];
+                            }
+                        }
+                    }
+                }
+                elems[index++] = (float) (sum * norm);
+            }
+        }
+        dest.setDataElements(destRect.x, destRect.y, destRect.width, destRect.height, elems);
+    }
+
+    /**
+     * Computes the number of window pixels falling into each cell along one axis, pixels beyond the scene border
+     * count for the border cell (BORDER_COPY). All coordinates refer to level 0.
+     *
+     * @return the index of the first cell overlapped by the window
+     */
+    private int computeAxisWeights(int pixel, int cellSize, int sceneSize, double[] weights, int offset) {
+        final int windowStart = pixel - kernelSize / 2;
+        final int windowEnd = windowStart + kernelSize - 1;
+        final int lastCell = (sceneSize - 1) / cellSize;
+        final int firstCell = Math.max(0, Math.min(windowStart, sceneSize - 1)) / cellSize;
+        final int endCell = Math.max(0, Math.min(windowEnd, sceneSize - 1)) / cellSize;
+        for (int cell = firstCell; cell <= endCell; cell++) {
+            final int overlapStart = Math.max(windowStart, cell * cellSize);
+            final int overlapEnd = Math.min(windowEnd, Math.min((cell + 1) * cellSize, sceneSize) - 1);
+            int count = Math.max(0, overlapEnd - overlapStart + 1);
+            if (cell == 0 && windowStart < 0) {
+                count += Math.min(-windowStart, kernelSize);
+            }
+            if (cell == lastCell && windowEnd > sceneSize - 1) {
+                count += Math.min(windowEnd - (sceneSize - 1), kernelSize);
+            }
+            weights[offset + cell - firstCell] = count;
+        }
+        return firstCell;
+    }
+}
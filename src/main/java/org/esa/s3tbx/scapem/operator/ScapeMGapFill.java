@@ -1,5 +1,9 @@
 package org.esa.s3tbx.scapem.operator;
 
+import com.bc.ceres.glevel.MultiLevelImage;
+import com.bc.ceres.glevel.MultiLevelModel;
+import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
+import com.bc.ceres.glevel.support.DefaultMultiLevelImage;
 import org.esa.s3tbx.scapem.ScapeMConstants;
 import org.esa.s3tbx.scapem.util.ScapeMUtils;
 import org.esa.snap.core.datamodel.Band;
@@ -11,8 +15,11 @@ import org.esa.snap.core.image.SingleBandedOpImage;
 import javax.media.jai.PlanarImage;
 import java.awt.*;
 import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -53,8 +60,52 @@ public class ScapeMGapFill {
                 }
             }
         }
-        float[][] updatedCellValues = new float[numberOfCellColumns][numberOfCellRows];
         areaMean /= numberOfValidCells;
+        final float[][] updatedCellValues = fillCellGrid(cellSamples, noDataValue, areaMean);
+        visibilityBand.setSourceImage(createMultiLevelImage(visibilityBand.getMultiLevelModel(),
+                                                            product.getSceneRasterWidth(),
+                                                            product.getSceneRasterHeight(),
+                                                            new Dimension(tileWidth, tileHeight),
+                                                            updatedCellValues));
+        return product;
+    }
+
+
+    /**
+     * Provides the gap-filled cell values as multi-level image, all resolution levels are computed from the cell grid.
+     *
+     * @param model             - the multi-level model of the target band
+     * @param width             - the scene width
+     * @param height            - the scene height
+     * @param cellSize          - the cell size in level 0 pixels
+     * @param updatedCellValues - the gap-filled cell values as [x][y]
+     * @return the multi-level image
+     */
+    static MultiLevelImage createMultiLevelImage(MultiLevelModel model, final int width, final int height,
+                                                 final Dimension cellSize, final float[][] updatedCellValues) {
+        return new DefaultMultiLevelImage(new AbstractMultiLevelSource(model) {
+            @Override
+            protected RenderedImage createImage(int level) {
+                return new ScapeMGapFilledImage(DataBuffer.TYPE_FLOAT, width, height, cellSize, null,
+                                                ResolutionLevel.create(getModel(), level), updatedCellValues);
+            }
+        });
+    }
+
+    /**
+     * Fills the gaps of a cell grid held in memory. A gap is filled with the mean of the valid cells within
+     * a radius of 2 cells (1 cell next to the border, border weighted mean at the border), or within 3 cells if
+     * there is none. Remaining gaps get the given area mean.
+     *
+     * @param cellSamples - the cell values as [x][y], gaps set to the no-data value
+     * @param noDataValue - the no-data value
+     * @param areaMean    - the mean of all valid cells
+     * @return the gap-filled cell values as [x][y]
+     */
+    static float[][] fillCellGrid(float[][] cellSamples, double noDataValue, float areaMean) {
+        final int numberOfCellColumns = cellSamples.length;
+        final int numberOfCellRows = cellSamples[0].length;
+        float[][] updatedCellValues = new float[numberOfCellColumns][numberOfCellRows];
         for (int y = 0; y < numberOfCellRows; y++) {
             for (int x = 0; x < numberOfCellColumns; x++) {
                 float cellSample = cellSamples[x][y];
@@ -82,13 +133,110 @@ public class ScapeMGapFill {
                 }
             }
         }
-        ScapeMGapFilledImage image = new ScapeMGapFilledImage(DataBuffer.TYPE_FLOAT, product.getSceneRasterWidth(), product.getSceneRasterHeight(),
-                                                              new Dimension(tileWidth, tileHeight), null, ResolutionLevel.MAXRES,
-                                                              updatedCellValues);
-        visibilityBand.setSourceImage(image);
-        return product;
+        return updatedCellValues;
+    }
+
+    /**
+     * Fills the gaps of a cell grid held in memory by pull-push interpolation: the grid is reduced to a pyramid of
+     * weighted means of the valid cells (pull), then gaps are filled level by level from the bilinearly
+     * interpolated coarser level (push). Gaps of any size get distance-weighted values of the surrounding valid cells in O(cells).
+     *
+     * @param cellSamples - the cell values as [x][y], gaps set to the no-data value
+     * @param noDataValue - the no-data value
+     * @return the gap-filled cell values as [x][y], a copy of the input if there is no valid cell at all
+     */
+    static float[][] fillCellGridPullPush(float[][] cellSamples, double noDataValue) {
+        final List<float[][]> values = new ArrayList<>();
+        final List<float[][]> weights = new ArrayList<>();
+        int width = cellSamples.length;
+        int height = cellSamples[0].length;
+        float[][] levelValues = new float[width][height];
+        float[][] levelWeights = new float[width][height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (cellSamples[x][y] != noDataValue) {
+                    levelValues[x][y] = cellSamples[x][y];
+                    levelWeights[x][y] = 1.0f;
+                }
+            }
+        }
+        values.add(levelValues);
+        weights.add(levelWeights);
+
+        // pull: weighted means with a 3x3 tent kernel centred at every second cell, weights saturate at 1
+        while (width > 1 || height > 1) {
+            final float[][] fineValues = levelValues;
+            final float[][] fineWeights = levelWeights;
+            final int fineWidth = width;
+            final int fineHeight = height;
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            levelValues = new float[width][height];
+            levelWeights = new float[width][height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    float weightSum = 0.0f;
+                    float valueSum = 0.0f;
+                    for (int xf = Math.max(0, 2 * x - 1); xf <= Math.min(2 * x + 1, fineWidth - 1); xf++) {
+                        final float kx = xf == 2 * x ? 1.0f : 0.5f;
+                        for (int yf = Math.max(0, 2 * y - 1); yf <= Math.min(2 * y + 1, fineHeight - 1); yf++) {
+                            final float k = kx * (yf == 2 * y ? 1.0f : 0.5f) * fineWeights[xf][yf];
+                            weightSum += k;
+                            valueSum += k * fineValues[xf][yf];
+                        }
+                    }
+                    if (weightSum > 0.0f) {
+                        levelValues[x][y] = valueSum / weightSum;
+                        levelWeights[x][y] = Math.min(1.0f, weightSum);
+                    }
+                }
+            }
+            values.add(levelValues);
+            weights.add(levelWeights);
+        }
+
+        if (levelWeights[0][0] == 0.0f) {
+            final float[][] copy = new float[cellSamples.length][];
+            for (int x = 0; x < cellSamples.length; x++) {
+                copy[x] = cellSamples[x].clone();
+            }
+            return copy;
+        }
+
+        // push: blend cells of partial weight with the coarser level, coarse cell x is centred at fine cell 2x
+        for (int level = values.size() - 2; level >= 0; level--) {
+            final float[][] coarseValues = values.get(level + 1);
+            final float[][] fineValues = values.get(level);
+            final float[][] fineWeights = weights.get(level);
+            final int coarseWidth = coarseValues.length;
+            final int coarseHeight = coarseValues[0].length;
+            for (int x = 0; x < fineValues.length; x++) {
+                for (int y = 0; y < fineValues[0].length; y++) {
+                    final float weight = fineWeights[x][y];
+                    if (weight < 1.0f) {
+                        final float coarseValue = interpolateBilinear(coarseValues, coarseWidth, coarseHeight,
+                                                                      0.5 * x, 0.5 * y);
+                        fineValues[x][y] = weight * fineValues[x][y] + (1.0f - weight) * coarseValue;
+                        fineWeights[x][y] = 1.0f;
+                    }
+                }
+            }
+        }
+        return values.get(0);
     }
 
+    private static float interpolateBilinear(float[][] grid, int width, int height, double x, double y) {
+        final double xc = Math.max(0.0, Math.min(width - 1, x));
+        final double yc = Math.max(0.0, Math.min(height - 1, y));
+        final int x0 = (int) xc;
+        final int y0 = (int) yc;
+        final int x1 = Math.min(x0 + 1, width - 1);
+        final int y1 = Math.min(y0 + 1, height - 1);
+        final double wx = xc - x0;
+        final double wy = yc - y0;
+        return (float) ((1.0 - wx) * ((1.0 - wy) * grid[x0][y0] + wy * grid[x0][y1]) +
+                wx * ((1.0 - wy) * grid[x1][y0] + wy * grid[x1][y1]));
+    }
 
     /* package local for testing*/
     static float interpolateOverRegion(float[][] cellSamples,
@@ -140,7 +288,10 @@ public class ScapeMGapFill {
 
 
 
-    private static class ScapeMGapFilledImage extends SingleBandedOpImage {
+    /**
+     * Image providing the gap-filled cell values, constant over each cell.
+     */
+    static class ScapeMGapFilledImage extends SingleBandedOpImage {
         private final int tileHeight;
         private final int tileWidth;
         private final float[][] updatedCellValues;
@@ -148,12 +299,13 @@ public class ScapeMGapFill {
         /**
          * Used to construct an image.
          *
-         * @param dataBufferType The data type.
-         * @param sourceWidth    The width of the level 0 image.
-         * @param sourceHeight   The height of the level 0 image.
-         * @param tileSize       The tile size for this image.
-         * @param configuration  The configuration map (can be null).
-         * @param level          The resolution level.
+         * @param dataBufferType    The data type.
+         * @param sourceWidth       The width of the level 0 image.
+         * @param sourceHeight      The height of the level 0 image.
+         * @param tileSize          The tile size for this image, equal to the cell size at level 0.
+         * @param configuration     The configuration map (can be null).
+         * @param level             The resolution level.
+         * @param updatedCellValues The cell values as [x][y]. May be null if {@link #getCellValues()} is overridden.
          */
         protected ScapeMGapFilledImage(int dataBufferType, int sourceWidth, int sourceHeight, Dimension tileSize,
                                        Map configuration, ResolutionLevel level, float[][] updatedCellValues) {
@@ -163,15 +315,38 @@ public class ScapeMGapFill {
             this.updatedCellValues = updatedCellValues;
         }
 
+        /**
+         * @return the cell values as [x][y]
+         */
+        protected float[][] getCellValues() {
+            return updatedCellValues;
+        }
+
+        /**
+         * @return the cell width in level 0 pixels
+         */
+        int getCellWidth() {
+            return tileWidth;
+        }
+
+        /**
+         * @return the cell height in level 0 pixels
+         */
+        int getCellHeight() {
+            return tileHeight;
+        }
+
         @Override
         protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            final float[][] cellValues = getCellValues();
             float[] elems = new float[destRect.width * destRect.height];
             int index = 0;
+            // pixels of lower resolution levels are mapped to level 0, i.e. sampled directly from the cell grid
             for (int y = destRect.y; y < destRect.height + destRect.y; y++) {
-                int yCellIndex = y / tileHeight;
+                int yCellIndex = Math.min(getSourceY(y) / tileHeight, cellValues[0].length - 1);
                 for (int x = destRect.x; x < destRect.width + destRect.x; x++) {
-                    int xCellIndex = x / tileWidth;
-                    float value = updatedCellValues[xCellIndex][yCellIndex];
+                    int xCellIndex = Math.min(getSourceX(x) / tileWidth, cellValues.length - 1);
+                    float value = cellValues[xCellIndex][yCellIndex];
                     elems[index++] = value;
                 }
             }
@@ -1,20 +1,33 @@
 package org.esa.s3tbx.scapem.operator;
 
-import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
+import com.bc.ceres.glevel.support.DefaultMultiLevelImage;
 import org.esa.s3tbx.scapem.ScapeMConstants;
-import org.esa.s3tbx.scapem.util.ScapeMUtils;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.Product;
 import org.esa.snap.core.datamodel.ProductData;
 import org.esa.snap.core.gpf.OperatorException;
 import org.esa.snap.core.gpf.OperatorSpi;
-import org.esa.snap.core.gpf.Tile;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
+import org.esa.snap.core.gpf.annotations.Parameter;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.gpf.annotations.TargetProduct;
-import org.esa.snap.core.util.RectangleExtender;
+import org.esa.snap.core.image.ResolutionLevel;
+import org.esa.snap.core.util.SystemUtils;
 
 import java.awt.*;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Operator providing the visibility gap filling as used in IDL breadboard
@@ -37,91 +50,49 @@ public class ScapeMGapFillOp extends ScapeMMerisBasisOp {
     @TargetProduct
     private Product targetProduct;
 
-    private RectangleExtender rectCalculator;
+    @Parameter(description = "Gap filling mode: means over fixed cell neighbourhoods as in the IDL breadboard, " +
+            "or pull-push interpolation, which fills gaps of any size from the surrounding valid cells",
+            label = "Gap filling mode",
+            valueSet = {ScapeMConstants.GAP_FILL_MODE_RADIUS, ScapeMConstants.GAP_FILL_MODE_PULL_PUSH},
+            defaultValue = ScapeMConstants.GAP_FILL_MODE_RADIUS)
+    private String gapFillMode;
 
-    private int pixelsPerCell;
     private Band gapVisibilityBand;
-    private double visImageMean;
     private int tileWidth;
     private int tileHeight;
     private int numberOfCellColumns;
     private int numberOfCellRows;
 
+    private FutureTask<float[][]> filledCellGridTask;
 
-    @Override
-    public void initialize() throws OperatorException {
-        if (sourceProduct.getProductType().contains("_RR")) {
-            pixelsPerCell = ScapeMConstants.RR_PIXELS_PER_CELL;
-        } else {
-            pixelsPerCell = ScapeMConstants.FR_PIXELS_PER_CELL;
-        }
+    private final AtomicInteger numReadCells = new AtomicInteger();
+    private final AtomicInteger numFilledCells = new AtomicInteger();
 
-        rectCalculator = new RectangleExtender(
-                new Rectangle(sourceProduct.getSceneRasterWidth(),
-                        sourceProduct.getSceneRasterHeight()),
-                3 * pixelsPerCell,
-                3 * pixelsPerCell);
 
+    @Override
+    public void initialize() throws OperatorException {
         tileWidth = (int) gapProduct.getPreferredTileSize().getWidth();
         tileHeight = (int) gapProduct.getPreferredTileSize().getHeight();
         numberOfCellColumns = (int) Math.ceil(gapProduct.getSceneRasterWidth() * 1.0 / tileWidth);
         numberOfCellRows = (int) Math.ceil(gapProduct.getSceneRasterHeight() * 1.0 / tileHeight);
 
-        createTargetProduct();
-
         gapVisibilityBand = gapProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
-        visImageMean = 0.0;
-//        visImageMean = getVisibilityImageMean();
-    }
-
-    @Override
-    public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
-
-        final double noDataValue = gapVisibilityBand.getNoDataValue();
-        final Rectangle targetRect = targetTile.getRectangle();
-        final Rectangle sourceRect = rectCalculator.extend(targetRect);
-
-        final Tile sourceVisibilityTile = getSourceTile(gapVisibilityBand, sourceRect);
-
-        final int tileIndexX = targetRect.x / pixelsPerCell;
-        final int tileIndexY = targetRect.y / pixelsPerCell;
-
-        final double visCellOrigValue = sourceVisibilityTile.getSampleDouble(targetRect.x, targetRect.y);
-
-        if (isVisibilityValid(visCellOrigValue)) {
-            setCellVisibilitySamples(targetTile, targetRect, visCellOrigValue);
-        } else {
-            // do gap filling by interpolation
-            final int minimumDistanceToEdge = ScapeMUtils.getMinimumDistanceToEdge(tileIndexX,
-                    tileIndexY,
-                    numberOfCellColumns,
-                    numberOfCellRows);
-
-            double visInterpolValue;
-            if (minimumDistanceToEdge >= 2) {
-                visInterpolValue = interpolateOverRegion(sourceVisibilityTile, tileIndexX, tileIndexY, 2, noDataValue);
-            } else if (minimumDistanceToEdge == 1) {
-                visInterpolValue = interpolateOverRegion(sourceVisibilityTile, tileIndexX, tileIndexY, 1, noDataValue);
-            } else {
-                visInterpolValue = interpolateAtCornerOrBorder(numberOfCellColumns, numberOfCellRows,
-                        sourceVisibilityTile, tileIndexX, tileIndexY, noDataValue);
-            }
-            if (visInterpolValue == 0 && minimumDistanceToEdge >= 3) {
-                visInterpolValue = interpolateOverRegion(sourceVisibilityTile, tileIndexX, tileIndexY, 3, noDataValue);
-            }
-            if (visInterpolValue == 0) {
-                synchronized (this) {
-                    if (visImageMean == 0.0) {
-                        visImageMean = getVisibilityImageMean();
-                    }
-                }
-                visInterpolValue = visImageMean;
+        filledCellGridTask = new FutureTask<>(new Callable<float[][]>() {
+            @Override
+            public float[][] call() {
+                return computeFilledCellGrid();
             }
+        });
 
-            setCellVisibilitySamples(targetTile, targetRect, visInterpolValue);
-        }
+        createTargetProduct();
     }
 
+    @Override
+    public void dispose() {
+        SystemUtils.LOG.fine("SCAPE-M gap filling: " + numReadCells.get() + " cell values read, " +
+                                     numFilledCells.get() + " cells filled.");
+        super.dispose();
+    }
 
     private void createTargetProduct() throws OperatorException {
         targetProduct = createCompatibleProduct(sourceProduct, "MER", "MER_L2");
@@ -129,83 +100,91 @@ public class ScapeMGapFillOp extends ScapeMMerisBasisOp {
         Band visibilityBand = targetProduct.addBand(ScapeMConstants.VISIBILITY_BAND_NAME, ProductData.TYPE_FLOAT32);
         visibilityBand.setNoDataValue(ScapeMConstants.VISIBILITY_NODATA_VALUE);
         visibilityBand.setValidPixelExpression(ScapeMConstants.SCAPEM_VALID_EXPR);
+        // the filled cell grid is computed on first access, i.e. when the first tile of any level is requested
+        final int width = targetProduct.getSceneRasterWidth();
+        final int height = targetProduct.getSceneRasterHeight();
+        final Dimension cellSize = new Dimension(tileWidth, tileHeight);
+        visibilityBand.setSourceImage(new DefaultMultiLevelImage(
+                new AbstractMultiLevelSource(visibilityBand.getMultiLevelModel()) {
+                    @Override
+                    protected RenderedImage createImage(int level) {
+                        return new ScapeMGapFill.ScapeMGapFilledImage(DataBuffer.TYPE_FLOAT, width, height, cellSize,
+                                                                      null, ResolutionLevel.create(getModel(), level),
+                                                                      null) {
+                            @Override
+                            protected float[][] getCellValues() {
+                                return getFilledCellGrid();
+                            }
+                        };
+                    }
+                }));
     }
 
-    private double getVisibilityImageMean() {
-        double areaMean = 0.0;
-        int numberOfValidCells = 0;
+    private float[][] getFilledCellGrid() {
+        // runs the computation in the first calling thread only, all other threads wait for its result
+        filledCellGridTask.run();
+        try {
+            return filledCellGridTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorException("Interrupted while gap filling visibility cell grid.", e);
+        } catch (ExecutionException e) {
+            throw new OperatorException("Failed to gap fill visibility cell grid.", e.getCause());
+        }
+    }
+
+    private float[][] computeFilledCellGrid() {
+        final double noDataValue = gapVisibilityBand.getNoDataValue();
+        final float[][] cellSamples = new float[numberOfCellColumns][numberOfCellRows];
+        final DoubleAdder visibilitySum = new DoubleAdder();
+        final LongAdder numberOfValidCells = new LongAdder();
+
+        // phase 1: complete the cell grid and accumulate the scene statistics, cell rows are read concurrently
+        final List<ForkJoinTask<?>> rowTasks = new ArrayList<>(numberOfCellRows);
         for (int y = 0; y < numberOfCellRows; y++) {
-            for (int x = 0; x < numberOfCellColumns; x++) {
-                final double cellValue = gapVisibilityBand.getSampleFloat(x * tileWidth, y * tileHeight);
-                if (isVisibilityValid(cellValue)) {
-                    areaMean += cellValue;
-                    numberOfValidCells++;
+            final int cellY = y;
+            rowTasks.add(ForkJoinPool.commonPool().submit(new Runnable() {
+                @Override
+                public void run() {
+                    readCellRow(cellY, noDataValue, cellSamples, visibilitySum, numberOfValidCells);
                 }
-            }
+            }));
+        }
+        for (ForkJoinTask<?> rowTask : rowTasks) {
+            rowTask.join();
         }
-        return areaMean / numberOfValidCells;
-    }
 
-    private boolean isVisibilityValid(double visValue) {
-        return !Double.isNaN(visValue) && visValue != ScapeMConstants.VISIBILITY_NODATA_VALUE;
-    }
+        // phase 2: the scene mean is final before any gap is filled
+        final double areaMean = visibilitySum.sum() / numberOfValidCells.sum();
 
-    private void setCellVisibilitySamples(Tile targetTile, Rectangle targetRect, double visibility) {
-        for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-            for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                targetTile.setSample(x, y, visibility);
-            }
+        // phase 3: gap filling on the complete grid
+        if (ScapeMConstants.GAP_FILL_MODE_PULL_PUSH.equals(gapFillMode)) {
+            return ScapeMGapFill.fillCellGridPullPush(cellSamples, noDataValue);
         }
+        return ScapeMGapFill.fillCellGrid(cellSamples, noDataValue, (float) areaMean);
     }
 
-    private float interpolateOverRegion(Tile visSourceTile, int x, int y, int neighboringDistance, double noDataValue) {
-        float meanValue = 0;
-        int validNeighboringCellsCounter = 0;
-        for (int i = -neighboringDistance; i <= neighboringDistance; i++) {
-            for (int j = -neighboringDistance; j <= neighboringDistance; j++) {
-                final int xAssign = x + i;
-                final int yAssign = y + j;
-                final double visValue = visSourceTile.getSampleDouble(xAssign * tileWidth, yAssign * tileHeight);
-                if (visValue != noDataValue) {
-                    meanValue += visValue;
-                    validNeighboringCellsCounter++;
-                }
+    private void readCellRow(int cellY, double noDataValue, float[][] cellSamples,
+                             DoubleAdder visibilitySum, LongAdder numberOfValidCells) {
+        for (int x = 0; x < numberOfCellColumns; x++) {
+            // the cell visibility is constant over a cell, so one sample of the cell tile is sufficient
+            final Rectangle cellRect = new Rectangle(x * tileWidth, cellY * tileHeight, 1, 1);
+            final double cellValue = getSourceTile(gapVisibilityBand, cellRect).getSampleDouble(cellRect.x,
+                                                                                                cellRect.y);
+            numReadCells.incrementAndGet();
+            if (isVisibilityValid(cellValue)) {
+                cellSamples[x][cellY] = (float) cellValue;
+                visibilitySum.add(cellValue);
+                numberOfValidCells.increment();
+            } else {
+                cellSamples[x][cellY] = (float) noDataValue;
+                numFilledCells.incrementAndGet();
             }
         }
-        if (validNeighboringCellsCounter > 0) {
-            meanValue /= validNeighboringCellsCounter;
-        }
-        return meanValue;
     }
 
-    private float interpolateAtCornerOrBorder(int numberOfCellColumns, int numberOfCellRows, Tile visSourceTile,
-                                              int x, int y, double noDataValue) {
-        float mean = 0;
-        int validCellsCounter = 0;
-
-        for (int i = -1; i <= 1; i++) {
-            for (int j = -1; j <= 1; j++) {
-                final int xAssign = x + i;
-                final int yAssign = y + j;
-                final int minimumDistanceToEdgeAssign
-                        = ScapeMUtils.getMinimumDistanceToEdge(xAssign, yAssign, numberOfCellColumns, numberOfCellRows);
-                if (minimumDistanceToEdgeAssign >= 0) {
-                    final double visValue = visSourceTile.getSampleDouble(xAssign * tileWidth, yAssign * tileHeight);
-                    if (visValue != noDataValue) {
-                        mean += visValue;
-                        validCellsCounter++;
-                        if (minimumDistanceToEdgeAssign == 0 && (i == 0 || j == 0)) {
-                            mean += visValue;
-                            validCellsCounter++;
-                        }
-                    }
-                }
-            }
-        }
-        if (validCellsCounter > 0) {
-            mean /= validCellsCounter;
-        }
-        return mean;
+    private boolean isVisibilityValid(double visValue) {
+        return !Double.isNaN(visValue) && visValue != ScapeMConstants.VISIBILITY_NODATA_VALUE;
     }
 
     public static class Spi extends OperatorSpi {
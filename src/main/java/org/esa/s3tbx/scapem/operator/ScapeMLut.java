@@ -1,5 +1,7 @@
 package org.esa.s3tbx.scapem.operator;
 
+import Stats.LinFit;
+import org.esa.s3tbx.scapem.ScapeMConstants;
 import org.esa.snap.core.util.math.LookupTable;
 
 /**
@@ -8,6 +10,9 @@ import org.esa.snap.core.util.math.LookupTable;
  * @author Tonio Fincke, Olaf Danne
  */
 public class ScapeMLut {
+
+    private static final int AOT_TABLE_SIZE = 1024;
+
     private LookupTable atmParamLut;
 
     private double hsfMin;
@@ -21,11 +26,18 @@ public class ScapeMLut {
     private double[] hsfArrayLUT;
     private double[] cwvArrayLUT;
 
+    private double[][] aotFitCoeffs;
+    private double[][] aotTable;
+    private double aotTableLnVisMin;
+    private double aotTableLnVisStep;
+
     public ScapeMLut(LookupTable atmParamLut) {
         this.atmParamLut = atmParamLut;
         setHsf();
         setVis();
         setCwv();
+        setAotFit();
+        setAotTable();
     }
 
     public LookupTable getAtmParamLut() {
@@ -68,6 +80,28 @@ public class ScapeMLut {
         return hsfArrayLUT;
     }
 
+    /**
+     * @return coefficients [a, b] of the fit ln(AOT550) = a + b * ln(vis) per surface height node
+     */
+    public double[][] getAotFitCoeffs() {
+        return aotFitCoeffs;
+    }
+
+    /**
+     * @return AOT550 per surface height node, tabulated at equidistant ln(vis) from ln(vis) of the first LUT node
+     */
+    public double[][] getAotTable() {
+        return aotTable;
+    }
+
+    public double getAotTableLnVisMin() {
+        return aotTableLnVisMin;
+    }
+
+    public double getAotTableLnVisStep() {
+        return aotTableLnVisStep;
+    }
+
     private void setHsf() {
         hsfArrayLUT = atmParamLut.getDimension(3).getSequence();
         hsfMin = hsfArrayLUT[0] + 0.001;
@@ -86,4 +120,34 @@ public class ScapeMLut {
         cwvMax = cwvArrayLUT[cwvArrayLUT.length - 1] - 0.001;
     }
 
+    // the log-log fits of AOT550 vs. visibility only depend on the LUT nodes, so they are done once here
+    private void setAotFit() {
+        final double[] lnVisGr = new double[visArrayLUT.length];
+        final double[] lnAotGr = new double[visArrayLUT.length];
+        for (int i = 0; i < lnVisGr.length; i++) {
+            lnVisGr[i] = Math.log(visArrayLUT[i]);
+        }
+        aotFitCoeffs = new double[hsfArrayLUT.length][2];
+        for (int i = 0; i < hsfArrayLUT.length; i++) {
+            for (int j = 0; j < lnVisGr.length; j++) {
+                lnAotGr[j] = Math.log(ScapeMConstants.AOT_GRID[i][j]);
+            }
+            final LinFit linFit = new LinFit(lnVisGr, lnAotGr, lnVisGr.length);
+            aotFitCoeffs[i][0] = linFit.getA();
+            aotFitCoeffs[i][1] = linFit.getB();
+        }
+    }
+
+    private void setAotTable() {
+        aotTableLnVisMin = Math.log(visArrayLUT[0]);
+        aotTableLnVisStep = (Math.log(visArrayLUT[visArrayLUT.length - 1]) - aotTableLnVisMin) / (AOT_TABLE_SIZE - 1);
+        aotTable = new double[hsfArrayLUT.length][AOT_TABLE_SIZE];
+        for (int i = 0; i < hsfArrayLUT.length; i++) {
+            for (int k = 0; k < AOT_TABLE_SIZE; k++) {
+                final double lnVis = aotTableLnVisMin + k * aotTableLnVisStep;
+                aotTable[i][k] = Math.exp(aotFitCoeffs[i][0] + aotFitCoeffs[i][1] * lnVis);
+            }
+        }
+    }
+
 }
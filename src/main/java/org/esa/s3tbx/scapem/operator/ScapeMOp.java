@@ -19,10 +19,10 @@ package org.esa.s3tbx.scapem.operator;
 import org.esa.s3tbx.scapem.algo.FubScapeMClassificationOp;
 import org.esa.s3tbx.scapem.io.LutAccess;
 import org.esa.s3tbx.scapem.ScapeMConstants;
+import org.esa.s3tbx.scapem.util.ScapeMGeometryProvider;
 import org.esa.snap.core.datamodel.Product;
 import org.esa.snap.core.datamodel.ProductData;
 import org.esa.snap.core.gpf.GPF;
-import org.esa.snap.core.gpf.Operator;
 import org.esa.snap.core.gpf.OperatorException;
 import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
@@ -53,6 +53,21 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
 
     private boolean useConstantWv = false;  // performance gain is negligible, so do not use as option for the moment
 
+    @Parameter(description = "Processing profile: REFERENCE follows the IDL breadboard, BALANCED and FAST relax " +
+            "solver tolerances and use faster water vapour retrieval for shorter processing times",
+               label = "Processing profile",
+               defaultValue = "REFERENCE")
+    private ScapeMProcessingProfile processingProfile;
+
+    @Parameter(description = "Water vapour retrieval method: Brent root finding, or inversion of the band ratio " +
+            "tabulated at the LUT water vapour nodes (optionally refined by Newton steps). " +
+            "If not set, the method of the processing profile is used.",
+               label = "Water vapour retrieval method",
+               valueSet = {ScapeMConstants.WV_RETRIEVAL_BRENT,
+                       ScapeMConstants.WV_RETRIEVAL_TABLE,
+                       ScapeMConstants.WV_RETRIEVAL_TABLE_NEWTON})
+    private String wvRetrieval;
+
     @Parameter(description = "If set, use GETASSE30 DEM, otherwise get altitudes from product TPGs",
                label = "Use GETASSE30 DEM",
                defaultValue = "false")
@@ -63,6 +78,32 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
                defaultValue = "false")
     private boolean skipGapFilling;
 
+    @Parameter(description = "Gap filling mode: means over fixed cell neighbourhoods as in the IDL breadboard, " +
+            "or pull-push interpolation, which fills gaps of any size from the surrounding valid cells. " +
+            "If not set, the mode of the processing profile is used.",
+               label = "Gap filling mode",
+               valueSet = {ScapeMConstants.GAP_FILL_MODE_RADIUS, ScapeMConstants.GAP_FILL_MODE_PULL_PUSH})
+    private String gapFillMode;
+
+    @Parameter(description = "Visibility to AOT conversion: evaluation of the log-log fits, or linear " +
+            "interpolation of the fits tabulated over ln(visibility). " +
+            "If not set, the conversion of the processing profile is used.",
+               label = "Visibility to AOT conversion",
+               valueSet = {ScapeMConstants.AOT_CONVERSION_FIT, ScapeMConstants.AOT_CONVERSION_TABLE})
+    private String aotConversion;
+
+    @Parameter(description = "If set, AOT550 is derived in the same tile pass as the atmospheric correction, " +
+            "sharing the visibility and surface height inputs",
+               label = "Compute AOT within AC",
+               defaultValue = "false")
+    private boolean fuseAotAndAc;
+
+    @Parameter(description = "If set, the cloud classification takes its reflectances from the Rad2Refl operator, " +
+            "else only the needed radiances are converted within the classification. " +
+            "If not set, the choice of the processing profile is used.",
+               label = "Cloud classification with Rad2Refl")
+    private Boolean useRad2Refl;
+
     @Parameter(description = "If set, visibility smoothing will not be applied",
                label = "Skip visibility smoothing",
                defaultValue = "false")
@@ -78,6 +119,17 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
                defaultValue = "false")
     private boolean outputReflBand2;
 
+    @Parameter(description = "If set, the pixel rows of a cell are corrected in parallel. Useful if there are " +
+            "fewer cells than processor cores, e.g. for small subsets or RR products.",
+               label = "Parallel AC within cells",
+               defaultValue = "false")
+    private boolean parallelAcRows;
+
+    @Parameter(description = "Names of the AC bands to write, e.g. 'water_vapour,refl_13'. Terms are computed " +
+            "for these bands only. If not set, water vapour and the standard reflectance bands are written.",
+               label = "AC output bands")
+    private String[] outputBands;
+
     @SourceProduct(alias = "MERIS_L1b", description = "MERIS L1B product")
     private Product sourceProduct;
 
@@ -97,13 +149,18 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
 
 
 
+
     protected ScapeMLut scapeMLut;
 
+    private ScapeMGeometryProvider geometryProvider;
+
 
     @Override
     public void initialize() throws OperatorException {
         System.out.println("using SCAPE-M VERSION = " + VERSION);
         checkProductStartStopTimes();
+        // shared by the classification, visibility and AC steps; the cell geometry is kept from visibility to AC
+        geometryProvider = new ScapeMGeometryProvider(sourceProduct);
         readAuxdata();
         final Product cloudProduct = getCloudProduct();
         // get the cell visibility/AOT product...
@@ -116,10 +173,11 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
         if (skipGapFilling) {
             gapFilledVisibilityProduct = cellVisibilityProduct;
         } else {
-            // todo: improve gap filling performance!
             final ScapeMGapFillOp scapeMGapFillOp = new ScapeMGapFillOp();
             scapeMGapFillOp.setSourceProduct(SOURCE_PRODUCT, sourceProduct);
             scapeMGapFillOp.setSourceProduct("gap", cellVisibilityProduct);
+            scapeMGapFillOp.setParameter("gapFillMode",
+                                         gapFillMode != null ? gapFillMode : processingProfile.getGapFillMode());
             gapFilledVisibilityProduct = scapeMGapFillOp.getTargetProduct();
         }
 
@@ -133,19 +191,30 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
         }
 
         // convert visibility to AOT
-        final ScapeMVis2AotOp scapeMVis2AotOp = new ScapeMVis2AotOp();
-        scapeMVis2AotOp.setSourceProduct(SOURCE_PRODUCT, sourceProduct);
-        scapeMVis2AotOp.setSourceProduct("visibility", smoothedVisibilityProduct);
-        scapeMVis2AotOp.setScapeMLut(scapeMLut);
-        Product aotProduct = scapeMVis2AotOp.getTargetProduct();
+        Product aotProduct = null;
+        if (!fuseAotAndAc) {
+            final ScapeMVis2AotOp scapeMVis2AotOp = new ScapeMVis2AotOp();
+            scapeMVis2AotOp.setSourceProduct(SOURCE_PRODUCT, sourceProduct);
+            scapeMVis2AotOp.setSourceProduct("visibility", smoothedVisibilityProduct);
+            scapeMVis2AotOp.setScapeMLut(scapeMLut);
+            scapeMVis2AotOp.setParameter("aotConversion", getAotConversion());
+            aotProduct = scapeMVis2AotOp.getTargetProduct();
+        }
 
         // derive CWV...
         // derive reflectance...
+        // (and AOT, if fused)
         Product atmosCorrProduct = getAtmosphaseCorrectionProduct(cloudProduct, smoothedVisibilityProduct);
         targetProduct = atmosCorrProduct;
         ProductUtils.copyFlagBands(cloudProduct, targetProduct, true);
         ProductUtils.copyMasks(cloudProduct, targetProduct);
-        ProductUtils.copyBand(ScapeMConstants.AOT550_BAND_NAME, aotProduct, atmosCorrProduct, true);
+        if (aotProduct != null) {
+            ProductUtils.copyBand(ScapeMConstants.AOT550_BAND_NAME, aotProduct, atmosCorrProduct, true);
+        }
+    }
+
+    private String getAotConversion() {
+        return aotConversion != null ? aotConversion : processingProfile.getAotConversion();
     }
 
     private Product getAtmosphaseCorrectionProduct(Product cloudProduct, Product smoothedVisibilityProduct) {
@@ -156,9 +225,19 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
         scapeMAtmosCorrOp.setParameter("computeOverWater", computeOverWater);
         scapeMAtmosCorrOp.setParameter("useDEM", useDEM);
         scapeMAtmosCorrOp.setParameter("useConstantWv", useConstantWv);
+        scapeMAtmosCorrOp.setParameter("wvRetrieval",
+                                       wvRetrieval != null ? wvRetrieval : processingProfile.getWvRetrieval());
+        scapeMAtmosCorrOp.setParameter("wvFtol", processingProfile.getWvFtol());
         scapeMAtmosCorrOp.setParameter("outputRhoToa", outputRhoToa);
         scapeMAtmosCorrOp.setParameter("outputReflBand2", outputReflBand2);
+        scapeMAtmosCorrOp.setParameter("parallelAcRows", parallelAcRows);
+        scapeMAtmosCorrOp.setParameter("computeAot", fuseAotAndAc);
+        scapeMAtmosCorrOp.setParameter("aotConversion", getAotConversion());
+        if (outputBands != null) {
+            scapeMAtmosCorrOp.setParameter("outputBands", outputBands);
+        }
         scapeMAtmosCorrOp.setScapeMLut(scapeMLut);
+        scapeMAtmosCorrOp.setGeometryProvider(geometryProvider);
         return scapeMAtmosCorrOp.getTargetProduct();
     }
 
@@ -168,17 +247,24 @@ public class ScapeMOp extends ScapeMMerisBasisOp {
         scapeMVisibilityOp.setSourceProduct("cloud", cloudProduct);
         scapeMVisibilityOp.setParameter("computeOverWater", computeOverWater);
         scapeMVisibilityOp.setParameter("useDEM", useDEM);
+        scapeMVisibilityOp.setParameter("powellFtol", processingProfile.getPowellFtol());
+        scapeMVisibilityOp.setParameter("numVegEndMembers", processingProfile.getNumVegEndMembers());
+        scapeMVisibilityOp.setParameter("limRefSets", processingProfile.getLimRefSets());
         scapeMVisibilityOp.setScapeMLut(scapeMLut);
+        scapeMVisibilityOp.setGeometryProvider(geometryProvider);
         return scapeMVisibilityOp.getTargetProduct();
     }
 
     private Product getCloudProduct() {
-        Operator operator = new FubScapeMClassificationOp();
+        FubScapeMClassificationOp operator = new FubScapeMClassificationOp();
         operator.setSourceProduct(sourceProduct);
+        operator.setGeometryProvider(geometryProvider);
         operator.setParameter("reflectance_water_threshold", reflectance_water_threshold);
         operator.setParameter("thicknessOfCoast", thicknessOfCoast);
         operator.setParameter("minimumOceanSize", minimumOceanSize);
         operator.setParameter("calculateLakes", !computeOverWater);
+        operator.setParameter("useRad2Refl",
+                              useRad2Refl != null ? useRad2Refl : processingProfile.usesRad2Refl());
         return operator.getTargetProduct();
     }
 
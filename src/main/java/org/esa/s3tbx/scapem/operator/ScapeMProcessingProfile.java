@@ -0,0 +1,110 @@
+package org.esa.s3tbx.scapem.operator;
+
+import org.esa.s3tbx.scapem.ScapeMConstants;
+
+/**
+ * Processing profiles of SCAPE-M, trading accuracy for speed.
+ * A profile sets the solver tolerances, the number of vegetation end members used in the visibility
+ * retrieval, the water vapour retrieval method, the gap filling mode, the visibility to AOT conversion and the
+ * reflectance source of the cloud classification consistently for all processing steps.
+ *
+ * @author agent
+ */
+public enum ScapeMProcessingProfile {
+
+    /**
+     * Settings of the original IDL breadboard.
+     */
+    REFERENCE(ScapeMConstants.POWELL_FTOL, ScapeMConstants.FTOL, 3, 1, ScapeMConstants.WV_RETRIEVAL_BRENT,
+              ScapeMConstants.GAP_FILL_MODE_RADIUS, ScapeMConstants.AOT_CONVERSION_FIT, true),
+
+    /**
+     * Relaxed visibility minimisation and tabulated water vapour retrieval with Newton refinement.
+     */
+    BALANCED(1.E-3, ScapeMConstants.FTOL, 3, 1, ScapeMConstants.WV_RETRIEVAL_TABLE_NEWTON,
+             ScapeMConstants.GAP_FILL_MODE_RADIUS, ScapeMConstants.AOT_CONVERSION_FIT, true),
+
+    /**
+     * Coarse visibility minimisation with one vegetation end member, plain tabulated water vapour retrieval,
+     * pull-push gap filling, tabulated visibility to AOT conversion and cloud classification without Rad2Refl.
+     */
+    FAST(1.E-2, 1.E-3, 1, 1, ScapeMConstants.WV_RETRIEVAL_TABLE, ScapeMConstants.GAP_FILL_MODE_PULL_PUSH,
+         ScapeMConstants.AOT_CONVERSION_TABLE, false);
+
+    private final double powellFtol;
+    private final double wvFtol;
+    private final int numVegEndMembers;
+    private final int limRefSets;
+    private final String wvRetrieval;
+    private final String gapFillMode;
+    private final String aotConversion;
+    private final boolean useRad2Refl;
+
+    ScapeMProcessingProfile(double powellFtol, double wvFtol, int numVegEndMembers, int limRefSets,
+                            String wvRetrieval, String gapFillMode, String aotConversion, boolean useRad2Refl) {
+        this.powellFtol = powellFtol;
+        this.wvFtol = wvFtol;
+        this.numVegEndMembers = numVegEndMembers;
+        this.limRefSets = limRefSets;
+        this.wvRetrieval = wvRetrieval;
+        this.gapFillMode = gapFillMode;
+        this.aotConversion = aotConversion;
+        this.useRad2Refl = useRad2Refl;
+    }
+
+    /**
+     * @return fractional tolerance of the Powell minimisation in the visibility retrieval
+     */
+    public double getPowellFtol() {
+        return powellFtol;
+    }
+
+    /**
+     * @return absolute tolerance of the Brent water vapour retrieval
+     */
+    public double getWvFtol() {
+        return wvFtol;
+    }
+
+    /**
+     * @return number of vegetation end members tried in the visibility retrieval (1..3)
+     */
+    public int getNumVegEndMembers() {
+        return numVegEndMembers;
+    }
+
+    /**
+     * @return maximum number of reference pixel sets used in the visibility retrieval
+     */
+    public int getLimRefSets() {
+        return limRefSets;
+    }
+
+    /**
+     * @return the water vapour retrieval method, one of the ScapeMConstants.WV_RETRIEVAL_* values
+     */
+    public String getWvRetrieval() {
+        return wvRetrieval;
+    }
+
+    /**
+     * @return the visibility gap filling mode, one of the ScapeMConstants.GAP_FILL_MODE_* values
+     */
+    public String getGapFillMode() {
+        return gapFillMode;
+    }
+
+    /**
+     * @return the visibility to AOT conversion, one of the ScapeMConstants.AOT_CONVERSION_* values
+     */
+    public String getAotConversion() {
+        return aotConversion;
+    }
+
+    /**
+     * @return whether the cloud classification takes its reflectances from the Rad2Refl operator
+     */
+    public boolean usesRad2Refl() {
+        return useRad2Refl;
+    }
+}
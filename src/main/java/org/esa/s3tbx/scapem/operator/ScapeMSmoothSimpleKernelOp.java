@@ -1,5 +1,8 @@
 package org.esa.s3tbx.scapem.operator;
 
+import com.bc.ceres.glevel.MultiLevelImage;
+import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
+import com.bc.ceres.glevel.support.DefaultMultiLevelImage;
 import org.esa.s3tbx.scapem.ScapeMConstants;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.Product;
@@ -8,19 +11,17 @@ import org.esa.snap.core.gpf.OperatorSpi;
 import org.esa.snap.core.gpf.annotations.OperatorMetadata;
 import org.esa.snap.core.gpf.annotations.SourceProduct;
 import org.esa.snap.core.gpf.annotations.TargetProduct;
+import org.esa.snap.core.image.ResolutionLevel;
 import org.esa.snap.core.util.ProductUtils;
 
 
 import javax.media.jai.BorderExtender;
-import javax.media.jai.JAI;
-import javax.media.jai.KernelJAI;
-import javax.media.jai.RenderedOp;
-import javax.media.jai.operator.ConvolveDescriptor;
 import java.awt.*;
 import java.awt.image.RenderedImage;
 
 /**
- * Operator for smoothing 30km-cell visibility onto target grid, using a JAI convolution with simple constant kernel.
+ * Operator for smoothing 30km-cell visibility onto target grid, using a box filter of cell size
+ * (equivalent to a JAI convolution with simple constant kernel).
  *
  * @author olafd
  */
@@ -28,8 +29,9 @@ import java.awt.image.RenderedImage;
                   authors = "Olaf Danne",
                   copyright = "(c) 2014 Brockmann Consult",
                   internal = true,
-                  description = "Operator for smoothing 30km-cell visibility onto target grid, using a JAI convolution " +
-                          "with simple constant kernel. This replaces the weird stuff which was build following the breadboard.")
+                  description = "Operator for smoothing 30km-cell visibility onto target grid, using a box filter " +
+                          "of cell size computed from the cell grid or, as fallback, a separable running sum. " +
+                          "This replaces the weird stuff which was build following the breadboard.")
 public class ScapeMSmoothSimpleKernelOp extends ScapeMMerisBasisOp {
     @SourceProduct(alias = "source")
     private Product sourceProduct;
@@ -67,17 +69,28 @@ public class ScapeMSmoothSimpleKernelOp extends ScapeMMerisBasisOp {
         ProductUtils.copyMasks(sourceProduct, targetProduct);
 
         Band b = sourceProduct.getBand(ScapeMConstants.VISIBILITY_BAND_NAME);
-        RenderedImage sourceImage = b.getSourceImage();
+        final MultiLevelImage sourceImage = b.getSourceImage();
 
         final int kernelSize = pixelsPerCell;
-        float[] kernelMatrix = new float[kernelSize * kernelSize];
-        for (int k = 0; k < kernelMatrix.length; k++) {
-            kernelMatrix[k] = 1.0f / (kernelSize * kernelSize);
+        final RenderedImage targetImage;
+        if (sourceImage.getImage(0) instanceof ScapeMGapFill.ScapeMGapFilledImage) {
+            // piecewise constant cell grid: blend the cell values directly, the full resolution input is not needed,
+            // also not for the lower resolution levels
+            final ScapeMGapFill.ScapeMGapFilledImage cellGridImage =
+                    (ScapeMGapFill.ScapeMGapFilledImage) sourceImage.getImage(0);
+            final Dimension tileSize = new Dimension(pixelsPerCell, pixelsPerCell);
+            targetImage = new DefaultMultiLevelImage(new AbstractMultiLevelSource(sourceImage.getModel()) {
+                @Override
+                protected RenderedImage createImage(int level) {
+                    return new ScapeMCellGridSmoothingImage(cellGridImage, kernelSize, tileSize,
+                                                            ResolutionLevel.create(getModel(), level));
+                }
+            });
+        } else {
+            // box filter with running sums, same result as a convolution with a constant kernel of cell size
+            final BorderExtender borderExtender = BorderExtender.createInstance(BorderExtender.BORDER_COPY);
+            targetImage = new ScapeMBoxFilterImage(sourceImage, kernelSize, borderExtender);
         }
-        KernelJAI kernel = new KernelJAI(kernelSize, kernelSize, kernelMatrix);
-        final BorderExtender borderExtender = BorderExtender.createInstance(BorderExtender.BORDER_COPY);
-        RenderingHints testHints = new RenderingHints(JAI.KEY_BORDER_EXTENDER, borderExtender);
-        RenderedOp targetImage = ConvolveDescriptor.create(sourceImage, kernel, testHints);
 
         Band targetBand = ProductUtils.copyBand(ScapeMConstants.VISIBILITY_BAND_NAME, sourceProduct, targetProduct, false);
         targetBand.setSourceImage(targetImage);
@@ -37,6 +37,13 @@ public class ScapeMVis2AotOp extends ScapeMMerisBasisOp {
             defaultValue = "false")
     private boolean useDEM;
 
+    @Parameter(description = "Visibility to AOT conversion: evaluation of the log-log fits, or linear " +
+            "interpolation of the fits tabulated over ln(visibility)",
+            label = "Visibility to AOT conversion",
+            valueSet = {ScapeMConstants.AOT_CONVERSION_FIT, ScapeMConstants.AOT_CONVERSION_TABLE},
+            defaultValue = ScapeMConstants.AOT_CONVERSION_FIT)
+    private String aotConversion;
+
     @SourceProduct(alias = "source")
     private Product sourceProduct;
 
@@ -53,6 +60,8 @@ public class ScapeMVis2AotOp extends ScapeMMerisBasisOp {
 
     private ElevationModel elevationModel;
 
+    private boolean useAotTable;
+
     @Override
     public void initialize() throws OperatorException {
 
@@ -64,6 +73,7 @@ public class ScapeMVis2AotOp extends ScapeMMerisBasisOp {
             elevationModel = demDescriptor.createDem(Resampling.BILINEAR_INTERPOLATION);
         }
 
+        useAotTable = ScapeMConstants.AOT_CONVERSION_TABLE.equals(aotConversion);
 
         createTargetProduct();
     }
@@ -85,20 +95,9 @@ public class ScapeMVis2AotOp extends ScapeMMerisBasisOp {
                 hsurfArrayCell = ScapeMAlgorithm.getHsurfArrayCell(targetRect, geoCoding, altitudeTile, scapeMLut);
             }
 
-            for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
-                for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
-                    final double visibility = visibilityTile.getSampleDouble(x, y);
-                    if (visibility != ScapeMConstants.VISIBILITY_NODATA_VALUE) {
-                        final double aot550 = ScapeMAlgorithm.getCellAot550(visibility,
-                                hsurfArrayCell[x - targetRect.x][y - targetRect.y],
-                                scapeMLut);
-                        targetTile.setSample(x, y, aot550);
-                    } else {
-                        targetTile.setSample(x, y, ScapeMConstants.AOT_NODATA_VALUE);
-                    }
-                }
-                pm.worked(1);
-            }
+            ScapeMAlgorithm.setAot550Samples(targetTile, targetRect, visibilityTile, hsurfArrayCell, scapeMLut,
+                                             useAotTable);
+            pm.worked(targetRect.height);
         } catch (OperatorException e) {
             // todo
             e.printStackTrace();
@@ -1,9 +1,9 @@
 package org.esa.s3tbx.scapem.operator;
 
 import com.bc.ceres.core.ProgressMonitor;
-import org.esa.s3tbx.meris.brr.HelperFunctions;
 import org.esa.s3tbx.scapem.ScapeMConstants;
 import org.esa.s3tbx.scapem.util.ClearPixelStrategy;
+import org.esa.s3tbx.scapem.util.ScapeMGeometryProvider;
 import org.esa.s3tbx.scapem.util.ScapeMUtils;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.GeoCoding;
@@ -20,10 +20,11 @@ import org.esa.snap.core.gpf.annotations.TargetProduct;
 import org.esa.s3tbx.scapem.util.ClearLandAndWaterPixelStrategy;
 import org.esa.s3tbx.scapem.util.ClearLandPixelStrategy;
 import org.esa.snap.core.util.ProductUtils;
-import org.esa.snap.dataio.envisat.EnvisatConstants;
+import org.esa.snap.core.util.SystemUtils;
 
 import java.awt.*;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Operator for MERIS atmospheric correction with SCAPE-M algorithm: cell visibility retrieval part.
@@ -48,6 +49,15 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
             label = "Use GETASSE30 DEM",
             defaultValue = "false")
     private boolean useDEM;
+    @Parameter(description = "Fractional tolerance of the Powell minimisation in the visibility retrieval",
+            defaultValue = "1.E-4")
+    private double powellFtol;
+    @Parameter(description = "Number of vegetation end members tried in the visibility retrieval",
+            interval = "[1,3]", defaultValue = "3")
+    private int numVegEndMembers;
+    @Parameter(description = "Maximum number of reference pixel sets used in the visibility retrieval",
+            interval = "[1,10]", defaultValue = "1")
+    private int limRefSets;
     @SourceProduct(alias = "source")
     private Product sourceProduct;
     @SourceProduct(alias = "cloud")
@@ -55,10 +65,18 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
     @TargetProduct
     private Product targetProduct;
     private ElevationModel elevationModel;
+    private ScapeMGeometryProvider geometryProvider;
+    private boolean keepCellGeometry;
+
+    private final AtomicInteger numProcessedCells = new AtomicInteger();
+    private final AtomicInteger numSkippedCells = new AtomicInteger();
 
     @Override
     public void initialize() throws OperatorException {
         elevationModel = ScapeMUtils.getElevationModel(useDEM);
+        if (geometryProvider == null) {
+            geometryProvider = new ScapeMGeometryProvider(sourceProduct);
+        }
         createTargetProduct();
     }
 
@@ -68,13 +86,7 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
 
         final Rectangle targetRect = targetTile.getRectangle();
 
-        final Tile szaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME), targetRect);
-        final Tile vzaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME), targetRect);
-        final Tile saaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME), targetRect);
-        final Tile vaaTile = getSourceTile(sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME), targetRect);
-
-        Tile altitudeTile = getAltitudeTile(targetRect, sourceProduct, useDEM);
-
+        // check the cloud flags first: radiances, geometry and altitudes are only requested for usable cells
         ClearPixelStrategy clearPixelStrategy;
         if (computeOverWater) {
             clearPixelStrategy = new ClearLandAndWaterPixelStrategy();
@@ -83,30 +95,33 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
         }
         clearPixelStrategy.setTile(getSourceTile(cloudProduct.getBandAt(0), targetRect));
 
-        Tile[] radianceTiles = new Tile[ScapeMConstants.L1_BAND_NUM];
-        Band[] radianceBands = new Band[ScapeMConstants.L1_BAND_NUM];
-        for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
-            radianceBands[bandId] = sourceProduct.getBand(RADIANCE_BAND_PREFIX + "_" + (bandId + 1));
-            radianceTiles[bandId] = getSourceTile(radianceBands[bandId], targetRect);
-        }
-
-        double[] toaMinCell = new double[ScapeMConstants.L1_BAND_NUM];
-
-        final GeoCoding geoCoding = sourceProduct.getSceneGeoCoding();
-
         final boolean cellIsClear35Percent =
                 ScapeMAlgorithm.isCellClearLand(targetRect, clearPixelStrategy, 0.35);
 
         if (cellIsClear35Percent) {
-            // compute visibility...
+            numProcessedCells.incrementAndGet();
+
+            final ScapeMGeometryProvider.TileGeometry tileGeometry = keepCellGeometry ?
+                    geometryProvider.getCellGeometry(targetRect) : geometryProvider.getTileGeometry(targetRect);
+
+            Tile altitudeTile = getAltitudeTile(targetRect, sourceProduct, useDEM);
+
+            Tile[] radianceTiles = new Tile[ScapeMConstants.L1_BAND_NUM];
+            Band[] radianceBands = new Band[ScapeMConstants.L1_BAND_NUM];
+            for (int bandId = 0; bandId < ScapeMConstants.L1_BAND_NUM; bandId++) {
+                radianceBands[bandId] = sourceProduct.getBand(RADIANCE_BAND_PREFIX + "_" + (bandId + 1));
+                radianceTiles[bandId] = getSourceTile(radianceBands[bandId], targetRect);
+            }
+
+            double[] toaMinCell = new double[ScapeMConstants.L1_BAND_NUM];
 
-            final int centerX = targetRect.x + targetRect.width / 2;
-            final int centerY = targetRect.y + targetRect.height / 2;
+            final GeoCoding geoCoding = sourceProduct.getSceneGeoCoding();
 
-            final double vza = vzaTile.getSampleDouble(centerX, centerY);
-            final double sza = szaTile.getSampleDouble(centerX, centerY);
-            final double vaa = vaaTile.getSampleDouble(centerX, centerY);
-            final double saa = saaTile.getSampleDouble(centerX, centerY);
+            // compute visibility...
+
+            final double vza = tileGeometry.getCenterVza();
+            final double sza = tileGeometry.getCenterSza();
+            final double phi = tileGeometry.getCenterPhi();
 
             double[][] hsurfArrayCell;
             if (useDEM && altitudeTile == null) {
@@ -126,10 +141,8 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
 
             final double hsurfMeanCell = ScapeMAlgorithm.getCellMean(hsurfArrayCell, targetRect, clearPixelStrategy);
             final boolean cellIsClear45Percent = ScapeMAlgorithm.isCellClearLand(targetRect, clearPixelStrategy, 0.45);
-            final double[][] cosSzaArrayCell = ScapeMAlgorithm.getCosSzaArrayCell(targetRect, szaTile);
+            final double[][] cosSzaArrayCell = tileGeometry.getCosSza();
             final double cosSzaMeanCell = ScapeMAlgorithm.getCellMean(cosSzaArrayCell, targetRect, clearPixelStrategy);
-            //todo 3 mba/** This is the only usage of brr module, inline method. 14.04.2016
-            final double phi = HelperFunctions.computeAzimuthDifference(vaa, saa);
             final double visibility = ScapeMAlgorithm.getCellVisibility(toaArrayCell,
                     toaMinCell, vza, sza, phi,
                     hsurfArrayCell,
@@ -137,14 +150,32 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
                     cosSzaArrayCell,
                     cosSzaMeanCell,
                     cellIsClear45Percent,
-                    scapeMLut);
+                    scapeMLut,
+                    powellFtol,
+                    numVegEndMembers,
+                    limRefSets);
 
             setCellVisibilitySamples(targetTile, targetRect, visibility);
         } else {
+            numSkippedCells.incrementAndGet();
             setCellVisibilitySamples(targetTile, targetRect, ScapeMConstants.AOT_NODATA_VALUE);
         }
     }
 
+    @Override
+    public void dispose() {
+        SystemUtils.LOG.fine("SCAPE-M visibility: " + numProcessedCells.get() + " cells processed, " +
+                                     numSkippedCells.get() + " cloudy/invalid cells skipped.");
+        super.dispose();
+    }
+
+    /**
+     * @return the number of cells for which no visibility was retrieved because they are not clear enough
+     */
+    public int getNumSkippedCells() {
+        return numSkippedCells.get();
+    }
+
     private void setCellVisibilitySamples(Tile targetTile, Rectangle targetRect, double visibility) {
         for (int y = targetRect.y; y < targetRect.y + targetRect.height; y++) {
             for (int x = targetRect.x; x < targetRect.x + targetRect.width; x++) {
@@ -168,6 +199,17 @@ public class ScapeMVisibilityOp extends ScapeMMerisBasisOp {
         this.scapeMLut = scapeMLut;
     }
 
+    /**
+     * Sets a geometry provider shared with the AC operator. The cell geometry is kept in the provider until the AC
+     * operator releases it.
+     *
+     * @param geometryProvider - the shared geometry provider
+     */
+    public void setGeometryProvider(ScapeMGeometryProvider geometryProvider) {
+        this.geometryProvider = geometryProvider;
+        keepCellGeometry = true;
+    }
+
     public static class Spi extends OperatorSpi {
 
         public Spi() {
@@ -21,31 +21,74 @@ public class WaterVapourFunction implements UnivariateFunction {
 
         double chiSqrResult = 0.0;
 
+        setWvInterval(wv);
+
+        if (wvInf >= 0) {
+            // parAtmH[0..2] are lpw, etw, sab for the two bands, interpolated at wv
+            final double lToa0 = getLToa0(0);
+            final double lToa1 = getLToa0(1);
+            chiSqrResult = merisRatio - lToa1 / lToa0;
+        }
+
+        return chiSqrResult;
+    }
+
+    /**
+     * Derivative of the retrieval function with respect to water vapour, within the LUT interval containing wv.
+     *
+     * @param wv - the water vapour
+     * @return the derivative
+     */
+    public double derivative(double wv) {
+        setWvInterval(wv);
+        if (wvInf < 0) {
+            return 0.0;
+        }
+        final double lToa0 = getLToa0(0);
+        final double lToa1 = getLToa0(1);
+        final double dLToa0 = getLToa0Derivative(0);
+        final double dLToa1 = getLToa0Derivative(1);
+        final double dRatio = (dLToa1 * lToa0 - lToa1 * dLToa0) / (lToa0 * lToa0);
+        return -dRatio / (wvGr2[wvInf + 1] - wvGr2[wvInf]);
+    }
+
+    private void setWvInterval(double wv) {
         wvInf = -1;
         for (int i = 0; i < wvGr2.length; i++) {
             if (wv > wvGr2[i]) {
                 wvInf = i;
             }
         }
-
         if (wvInf >= 0) {
             wvP = (wv - wvGr2[wvInf]) / (wvGr2[wvInf + 1] - wvGr2[wvInf]);
-            double[][] parAtmInit = new double[parAtmH.length][parAtmH[0].length];
-            for (int i = 0; i < parAtmH.length; i++) {
-                for (int j = 0; j < parAtmH[0].length; j++) {
-                    parAtmInit[i][j] = parAtmH[i][j][wvInf] +
-                            wvP * (parAtmH[i][j][wvInf + 1] - parAtmH[i][j][wvInf]);
-                }
-            }
-            double[] lToa0 = new double[2];
-            for (int i = 0; i < lToa0.length; i++) {
-                lToa0[i] = parAtmInit[0][i] +
-                        reflPix[i] * parAtmInit[1][i] / (Math.PI * (1.0 - reflPix[i] * parAtmInit[2][i]));
-            }
-            chiSqrResult = merisRatio - lToa0[1] / lToa0[0];
         }
+    }
 
-        return chiSqrResult;
+    private double getLToa0(int bandIndex) {
+        final double lpw = interpolateAtWv(parAtmH[0][bandIndex]);
+        final double etw = interpolateAtWv(parAtmH[1][bandIndex]);
+        final double sab = interpolateAtWv(parAtmH[2][bandIndex]);
+        return lpw + reflPix[bandIndex] * etw / (Math.PI * (1.0 - reflPix[bandIndex] * sab));
+    }
+
+    // derivative of getLToa0 with respect to wvP
+    private double getLToa0Derivative(int bandIndex) {
+        final double etw = interpolateAtWv(parAtmH[1][bandIndex]);
+        final double sab = interpolateAtWv(parAtmH[2][bandIndex]);
+        final double dLpw = slopeAtWv(parAtmH[0][bandIndex]);
+        final double dEtw = slopeAtWv(parAtmH[1][bandIndex]);
+        final double dSab = slopeAtWv(parAtmH[2][bandIndex]);
+        final double refl = reflPix[bandIndex];
+        final double denominator = 1.0 - refl * sab;
+        return dLpw + refl * (dEtw * denominator + etw * refl * dSab) / (Math.PI * denominator * denominator);
+    }
+
+    private double slopeAtWv(double[] parAtm) {
+        return parAtm[wvInf + 1] - parAtm[wvInf];
+    }
+
+    private double interpolateAtWv(double[] parAtm) {
+        return parAtm[wvInf] + wvP * (parAtm[wvInf + 1] - parAtm[wvInf]);
     }
 
     public int getWvInf() {
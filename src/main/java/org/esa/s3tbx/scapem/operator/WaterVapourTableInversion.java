@@ -0,0 +1,115 @@
+package org.esa.s3tbx.scapem.operator;
+
+/**
+ * Water vapour retrieval by inversion of the band ratio tabulated at the LUT water vapour nodes.
+ * Alternative to the Brent root finding on {@link WaterVapourFunction}: the retrieval function is evaluated at the
+ * nodes only, the root is linearly interpolated within the first bracketing interval and optionally refined by
+ * Newton steps. Pixels without a root in the valid range are detected by a sign check, not by exceptions.
+ * An instance holds work buffers and must therefore not be shared between threads.
+ *
+ * @author agent
+ */
+public class WaterVapourTableInversion {
+
+    private static final int MAX_NEWTON_STEPS = 3;
+    private static final double NEWTON_TOL = 1.E-6;
+
+    private final WaterVapourFunction wvFunction;
+    private final boolean newtonPolish;
+
+    private final double[] wvNodes;
+    private final double[] fNodes;
+
+    private double wv;
+
+    /**
+     * @param wvFunction   - the retrieval function, set up for the current pixel by the caller
+     * @param wvGr2        - the LUT water vapour nodes
+     * @param wvLower      - lower bound of valid water vapour
+     * @param wvUpper      - upper bound of valid water vapour
+     * @param newtonPolish - if set, the interpolated root is refined by Newton steps
+     */
+    public WaterVapourTableInversion(WaterVapourFunction wvFunction, double[] wvGr2,
+                                     double wvLower, double wvUpper, boolean newtonPolish) {
+        this.wvFunction = wvFunction;
+        this.newtonPolish = newtonPolish;
+
+        int numInnerNodes = 0;
+        for (double node : wvGr2) {
+            if (node > wvLower && node < wvUpper) {
+                numInnerNodes++;
+            }
+        }
+        wvNodes = new double[numInnerNodes + 2];
+        fNodes = new double[numInnerNodes + 2];
+        int index = 0;
+        wvNodes[index++] = wvLower;
+        for (double node : wvGr2) {
+            if (node > wvLower && node < wvUpper) {
+                wvNodes[index++] = node;
+            }
+        }
+        wvNodes[index] = wvUpper;
+    }
+
+    /**
+     * Retrieves the water vapour for the pixel the retrieval function is currently set up for.
+     * On success, the function's wvInf and wvP refer to the retrieved water vapour.
+     *
+     * @return false if there is no root within the valid range
+     */
+    public boolean retrieve() {
+        final int last = wvNodes.length - 1;
+        fNodes[0] = wvFunction.value(wvNodes[0]);
+        fNodes[last] = wvFunction.value(wvNodes[last]);
+        if (fNodes[0] * fNodes[last] > 0.0) {
+            return false;
+        }
+        for (int i = 1; i < last; i++) {
+            fNodes[i] = wvFunction.value(wvNodes[i]);
+        }
+
+        int segment = 0;
+        while (segment < last - 1 && fNodes[segment] * fNodes[segment + 1] > 0.0) {
+            segment++;
+        }
+        final double wvLow = wvNodes[segment];
+        final double wvHigh = wvNodes[segment + 1];
+        final double fLow = fNodes[segment];
+        final double fHigh = fNodes[segment + 1];
+        if (fLow == fHigh) {
+            wv = wvLow;
+        } else {
+            wv = wvLow - fLow * (wvHigh - wvLow) / (fHigh - fLow);
+        }
+
+        if (newtonPolish) {
+            for (int i = 0; i < MAX_NEWTON_STEPS; i++) {
+                final double derivative = wvFunction.derivative(wv);
+                if (derivative == 0.0) {
+                    break;
+                }
+                final double wvNext = wv - wvFunction.value(wv) / derivative;
+                if (wvNext < wvLow || wvNext > wvHigh) {
+                    break;
+                }
+                final boolean converged = Math.abs(wvNext - wv) < NEWTON_TOL;
+                wv = wvNext;
+                if (converged) {
+                    break;
+                }
+            }
+        }
+
+        // leave the function positioned at the result
+        wvFunction.value(wv);
+        return true;
+    }
+
+    /**
+     * @return the water vapour found by the last successful {@link #retrieve()}
+     */
+    public double getWv() {
+        return wv;
+    }
+}
@@ -0,0 +1,176 @@
+package org.esa.s3tbx.scapem.util;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.s3tbx.meris.brr.HelperFunctions;
+import org.esa.s3tbx.scapem.ScapeMConstants;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.datamodel.TiePointGrid;
+import org.esa.snap.core.util.math.MathUtils;
+import org.esa.snap.dataio.envisat.EnvisatConstants;
+
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Provides the solar/view geometry of target rectangles, interpolated directly from the MERIS tie-point grids.
+ * The geometry of a SCAPE-M cell can be kept per cell index until its last consumer releases it, so that the
+ * visibility and AC operators share it. Instances are thread-safe.
+ *
+ * @author agent
+ */
+public class ScapeMGeometryProvider {
+
+    private final TiePointGrid szaGrid;
+    private final TiePointGrid vzaGrid;
+    private final TiePointGrid saaGrid;
+    private final TiePointGrid vaaGrid;
+    private final int sceneWidth;
+    private final int sceneHeight;
+    private final int pixelsPerCell;
+    private final int numCellsX;
+    private final AtomicReferenceArray<TileGeometry> cellGeometries;
+
+    /**
+     * @param sourceProduct - the MERIS L1b product
+     */
+    public ScapeMGeometryProvider(Product sourceProduct) {
+        szaGrid = sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_ZENITH_DS_NAME);
+        vzaGrid = sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_ZENITH_DS_NAME);
+        saaGrid = sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_SUN_AZIMUTH_DS_NAME);
+        vaaGrid = sourceProduct.getTiePointGrid(EnvisatConstants.MERIS_VIEW_AZIMUTH_DS_NAME);
+        sceneWidth = sourceProduct.getSceneRasterWidth();
+        sceneHeight = sourceProduct.getSceneRasterHeight();
+        if (sourceProduct.getProductType().contains("_RR")) {
+            pixelsPerCell = ScapeMConstants.RR_PIXELS_PER_CELL;
+        } else {
+            pixelsPerCell = ScapeMConstants.FR_PIXELS_PER_CELL;
+        }
+        numCellsX = (sceneWidth - 1) / pixelsPerCell + 1;
+        final int numCellsY = (sceneHeight - 1) / pixelsPerCell + 1;
+        cellGeometries = new AtomicReferenceArray<>(numCellsX * numCellsY);
+    }
+
+    /**
+     * Computes the geometry of a rectangle without caching it.
+     *
+     * @param rect - the target rectangle
+     * @return the geometry of the rectangle
+     */
+    public TileGeometry getTileGeometry(Rectangle rect) {
+        return computeTileGeometry(new Rectangle(rect));
+    }
+
+    /**
+     * Returns the geometry of a cell and keeps it until {@link #releaseCellGeometry} is called for the cell.
+     * Rectangles which are not cells are computed without caching.
+     *
+     * @param rect - the cell rectangle
+     * @return the geometry of the cell
+     */
+    public TileGeometry getCellGeometry(Rectangle rect) {
+        final int cellIndex = getCellIndex(rect);
+        if (cellIndex < 0) {
+            return getTileGeometry(rect);
+        }
+        final TileGeometry cached = cellGeometries.get(cellIndex);
+        if (cached != null) {
+            return cached;
+        }
+        // concurrent requests for the same cell give equal results, the first one is kept
+        final TileGeometry geometry = getTileGeometry(rect);
+        return cellGeometries.compareAndSet(cellIndex, null, geometry) ? geometry : cellGeometries.get(cellIndex);
+    }
+
+    /**
+     * Returns the geometry of a cell and removes it from the cache. To be called by the last consumer of the cell.
+     *
+     * @param rect - the cell rectangle
+     * @return the geometry of the cell
+     */
+    public TileGeometry releaseCellGeometry(Rectangle rect) {
+        final int cellIndex = getCellIndex(rect);
+        final TileGeometry cached = cellIndex >= 0 ? cellGeometries.getAndSet(cellIndex, null) : null;
+        return cached != null ? cached : getTileGeometry(rect);
+    }
+
+    // the index of the cell covered by the rectangle, -1 if the rectangle is not a cell
+    private int getCellIndex(Rectangle rect) {
+        if (rect.x % pixelsPerCell != 0 || rect.y % pixelsPerCell != 0 ||
+                rect.width != Math.min(pixelsPerCell, sceneWidth - rect.x) ||
+                rect.height != Math.min(pixelsPerCell, sceneHeight - rect.y)) {
+            return -1;
+        }
+        return (rect.y / pixelsPerCell) * numCellsX + rect.x / pixelsPerCell;
+    }
+
+    private TileGeometry computeTileGeometry(Rectangle rect) {
+        final float[] sza = szaGrid.getPixels(rect.x, rect.y, rect.width, rect.height, (float[]) null,
+                                              ProgressMonitor.NULL);
+        final double[][] cosSza = new double[rect.width][rect.height];
+        for (int y = 0; y < rect.height; y++) {
+            for (int x = 0; x < rect.width; x++) {
+                cosSza[x][y] = Math.cos(sza[y * rect.width + x] * MathUtils.DTOR);
+            }
+        }
+
+        final int centerX = rect.x + rect.width / 2;
+        final int centerY = rect.y + rect.height / 2;
+        final double centerSza = sza[(centerY - rect.y) * rect.width + (centerX - rect.x)];
+        final double centerVza = getCenterValue(vzaGrid, centerX, centerY);
+        final double centerSaa = getCenterValue(saaGrid, centerX, centerY);
+        final double centerVaa = getCenterValue(vaaGrid, centerX, centerY);
+        final double centerPhi = HelperFunctions.computeAzimuthDifference(centerVaa, centerSaa);
+
+        return new TileGeometry(cosSza, centerSza, centerVza, centerPhi);
+    }
+
+    private static double getCenterValue(TiePointGrid grid, int x, int y) {
+        return grid.getPixels(x, y, 1, 1, (float[]) null, ProgressMonitor.NULL)[0];
+    }
+
+    /**
+     * The geometry of a target rectangle.
+     */
+    public static class TileGeometry {
+
+        private final double[][] cosSza;
+        private final double centerSza;
+        private final double centerVza;
+        private final double centerPhi;
+
+        TileGeometry(double[][] cosSza, double centerSza, double centerVza, double centerPhi) {
+            this.cosSza = cosSza;
+            this.centerSza = centerSza;
+            this.centerVza = centerVza;
+            this.centerPhi = centerPhi;
+        }
+
+        /**
+         * @return cos(SZA) of all pixels as [x][y] relative to the rectangle origin. Must not be modified.
+         */
+        public double[][] getCosSza() {
+            return cosSza;
+        }
+
+        /**
+         * @return SZA at the rectangle centre
+         */
+        public double getCenterSza() {
+            return centerSza;
+        }
+
+        /**
+         * @return VZA at the rectangle centre
+         */
+        public double getCenterVza() {
+            return centerVza;
+        }
+
+        /**
+         * @return azimuth difference at the rectangle centre
+         */
+        public double getCenterPhi() {
+            return centerPhi;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.esa.s3tbx.scapem.algo;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FubScapeMCoastBufferTest {
+
+    @Test
+    public void testCoastBufferAgainstDiamondStamping() {
+        final int width = 120;
+        final int height = 90;
+        final Rectangle sceneRect = new Rectangle(width, height);
+        final Random random = new Random(3);
+        for (int thickness : new int[]{0, 1, 2, 5, 33}) {
+            final boolean[] coastline = createCoastline(width, height, random);
+            final boolean[] expected = stampDiamonds(coastline, width, height, thickness);
+
+            final BitSet buffer = FubScapeMCoastBuffer.computeCoastBuffer(coastline, sceneRect, sceneRect, thickness);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], buffer.get(i));
+            }
+
+            // tile-wise, from the coastline window of each tile
+            for (int tileSize : new int[]{16, 37}) {
+                for (int tileY = 0; tileY < height; tileY += tileSize) {
+                    for (int tileX = 0; tileX < width; tileX += tileSize) {
+                        final Rectangle tileRect = new Rectangle(tileX, tileY, tileSize, tileSize).intersection(sceneRect);
+                        final Rectangle window = FubScapeMCoastBuffer.getCoastlineWindow(tileRect, thickness, sceneRect);
+                        final BitSet tileBuffer = FubScapeMCoastBuffer.computeCoastBuffer(
+                                getWindow(coastline, width, window), window, tileRect, thickness);
+                        for (int y = 0; y < tileRect.height; y++) {
+                            for (int x = 0; x < tileRect.width; x++) {
+                                assertEquals(expected[(tileRect.y + y) * width + tileRect.x + x],
+                                             tileBuffer.get(y * tileRect.width + x));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCoastBufferOfFullResolutionTile() {
+        // a 512 x 512 full resolution tile with the default thickness of 20 km, i.e. 33 pixels
+        final int tileSize = 512;
+        final int thickness = 33;
+        final Rectangle tileRect = new Rectangle(thickness, thickness, tileSize, tileSize);
+        final Rectangle window = new Rectangle(tileSize + 2 * thickness, tileSize + 2 * thickness);
+        final boolean[] coastline = createCoastline(window.width, window.height, new Random(5));
+
+        final boolean[] expected = stampDiamonds(coastline, window.width, window.height, thickness);
+        final BitSet buffer = FubScapeMCoastBuffer.computeCoastBuffer(coastline, window, tileRect, thickness);
+
+        for (int y = 0; y < tileSize; y++) {
+            for (int x = 0; x < tileSize; x++) {
+                assertEquals(expected[(y + thickness) * window.width + x + thickness], buffer.get(y * tileSize + x));
+            }
+        }
+    }
+
+    // a meandering coastline plus some isolated coastline pixels
+    private static boolean[] createCoastline(int width, int height, Random random) {
+        final boolean[] coastline = new boolean[width * height];
+        int x = width / 3;
+        for (int y = 0; y < height; y++) {
+            x = Math.max(0, Math.min(width - 1, x + random.nextInt(3) - 1));
+            coastline[y * width + x] = true;
+        }
+        for (int i = 0; i < coastline.length / 200; i++) {
+            coastline[random.nextInt(coastline.length)] = true;
+        }
+        return coastline;
+    }
+
+    // the buffer as formerly computed in FubScapeMLakesOp
+    private static boolean[] stampDiamonds(boolean[] coastline, int width, int height, int thickness) {
+        final boolean[] buffer = new boolean[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (coastline[y * width + x]) {
+                    for (int i = -thickness; i < thickness; i++) {
+                        int offset = -Math.abs(i) + thickness;
+                        for (int j = -offset; j < offset; j++) {
+                            if (x + j >= 0 && y + i >= 0 && x + j < width && y + i < height) {
+                                buffer[(y + i) * width + x + j] = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private static boolean[] getWindow(boolean[] coastline, int width, Rectangle window) {
+        final boolean[] windowCoastline = new boolean[window.width * window.height];
+        for (int y = 0; y < window.height; y++) {
+            System.arraycopy(coastline, (window.y + y) * width + window.x, windowCoastline, y * window.width,
+                             window.width);
+        }
+        return windowCoastline;
+    }
+}
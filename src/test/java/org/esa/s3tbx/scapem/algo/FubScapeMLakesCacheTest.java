@@ -0,0 +1,74 @@
+package org.esa.s3tbx.scapem.algo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FubScapeMLakesCacheTest {
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final Path cacheDir = Files.createTempDirectory("scapem-lakes-cache");
+        final FubScapeMLakesCache cache = new FubScapeMLakesCache(cacheDir.resolve("lakes"), "0123abcd");
+        try {
+            assertNull(cache.read(7, 5, false));
+
+            final ByteBuffer regionClasses = ByteBuffer.allocate(35);
+            for (int i = 0; i < 35; i++) {
+                regionClasses.put(i, (byte) (i % 3));
+            }
+            cache.write(regionClasses, 7, 5);
+
+            for (boolean mapped : new boolean[]{false, true}) {
+                final ByteBuffer cachedRegionClasses = cache.read(7, 5, mapped);
+                assertEquals(35, cachedRegionClasses.capacity());
+                for (int i = 0; i < 35; i++) {
+                    assertEquals(regionClasses.get(i), cachedRegionClasses.get(i));
+                }
+            }
+            // a different grid is not served from the cache
+            assertNull(cache.read(5, 7, false));
+        } finally {
+            Files.deleteIfExists(cache.getCacheFile());
+            Files.deleteIfExists(cache.getCacheFile().getParent());
+            Files.deleteIfExists(cacheDir);
+        }
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        final Path cacheDir = Files.createTempDirectory("scapem-lakes-cache");
+        // room for two files of 12 header bytes and 35 region classes each
+        final FubScapeMLakesCache cache1 = new FubScapeMLakesCache(cacheDir, "1", 100);
+        final FubScapeMLakesCache cache2 = new FubScapeMLakesCache(cacheDir, "2", 100);
+        final FubScapeMLakesCache cache3 = new FubScapeMLakesCache(cacheDir, "3", 100);
+        try {
+            final ByteBuffer regionClasses = ByteBuffer.allocate(35);
+            cache1.write(regionClasses, 7, 5);
+            cache2.write(regionClasses, 7, 5);
+            Files.setLastModifiedTime(cache1.getCacheFile(), FileTime.fromMillis(1000));
+            Files.setLastModifiedTime(cache2.getCacheFile(), FileTime.fromMillis(2000));
+            // a hit makes the older file the most recently used one
+            assertNotNull(cache1.read(7, 5, false));
+
+            cache3.write(regionClasses, 7, 5);
+            assertTrue(Files.exists(cache1.getCacheFile()));
+            assertFalse(Files.exists(cache2.getCacheFile()));
+            assertTrue(Files.exists(cache3.getCacheFile()));
+        } finally {
+            Files.deleteIfExists(cache1.getCacheFile());
+            Files.deleteIfExists(cache2.getCacheFile());
+            Files.deleteIfExists(cache3.getCacheFile());
+            Files.deleteIfExists(cacheDir);
+        }
+    }
+}
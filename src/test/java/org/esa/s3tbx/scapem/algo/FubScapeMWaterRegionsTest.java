@@ -0,0 +1,247 @@
+package org.esa.s3tbx.scapem.algo;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FubScapeMWaterRegionsTest {
+
+    @Test
+    public void testLabelSmallScene() throws Exception {
+        final String[] rows = {
+                "WW..W",
+                ".W..W",
+                ".WWWW",
+                "W....",
+                "W.W.W"
+        };
+        final boolean[] water = new boolean[25];
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < rows[y].length(); x++) {
+                water[y * 5 + x] = rows[y].charAt(x) == 'W';
+            }
+        }
+        // stripe boundaries between all rows
+        final FubScapeMWaterRegions regions =
+                FubScapeMWaterRegions.label(5, 5, 1, new ArraySource(water, 5), false, ProgressMonitor.NULL);
+
+        assertEquals(9, regions.getRegionSize(0, 0));
+        assertEquals(9, regions.getRegionSize(4, 0));
+        assertEquals(2, regions.getRegionSize(0, 4));
+        assertEquals(1, regions.getRegionSize(2, 4));
+        assertEquals(1, regions.getRegionSize(4, 4));
+        assertEquals(0, regions.getRegionSize(2, 0));
+        assertEquals(false, regions.isWater(1, 4));
+    }
+
+    @Test
+    public void testLabelAgainstFloodFill() throws Exception {
+        final int width = 157;
+        final int height = 203;
+        final int minimumRegionSize = 6;
+        final Random random = new Random(42);
+        for (double waterProbability : new double[]{0.3, 0.55, 0.8}) {
+            final boolean[] water = new boolean[width * height];
+            for (int i = 0; i < water.length; i++) {
+                water[i] = random.nextDouble() < waterProbability;
+            }
+            final int[] expectedSizes = getRegionSizesByFloodFill(water, width, height);
+            for (int stripeHeight : new int[]{1, 7, 64, height}) {
+                final boolean outOfCore = stripeHeight == 7;
+                final FubScapeMWaterRegions regions =
+                        FubScapeMWaterRegions.label(width, height, stripeHeight, new ArraySource(water, width),
+                                                    outOfCore, ProgressMonitor.NULL);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        assertEquals(water[y * width + x], regions.isWater(x, y));
+                        assertEquals(expectedSizes[y * width + x], regions.getRegionSize(x, y));
+                    }
+                }
+                final ByteBuffer regionClasses = regions.classifyRegions(minimumRegionSize);
+                for (int i = 0; i < water.length; i++) {
+                    final byte expectedClass;
+                    if (!water[i]) {
+                        expectedClass = FubScapeMWaterRegions.NO_WATER;
+                    } else if (expectedSizes[i] < minimumRegionSize) {
+                        expectedClass = FubScapeMWaterRegions.SMALL_REGION;
+                    } else {
+                        expectedClass = FubScapeMWaterRegions.LARGE_REGION;
+                    }
+                    assertEquals(expectedClass, regionClasses.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLabelStripedScene() throws Exception {
+        // synthetic scene of several stripes: large water bodies with lakes and single pixel noise
+        final int width = 601;
+        final int height = 1100;
+        final FubScapeMWaterRegions.WaterMaskSource source = new FubScapeMWaterRegions.WaterMaskSource() {
+            @Override
+            public boolean[] getWaterMask(Rectangle rect) {
+                final boolean[] water = new boolean[rect.width * rect.height];
+                for (int y = 0; y < rect.height; y++) {
+                    for (int x = 0; x < rect.width; x++) {
+                        final int sceneX = rect.x + x;
+                        final int sceneY = rect.y + y;
+                        final double value = Math.sin(sceneX * 0.013) * Math.cos(sceneY * 0.007) +
+                                0.3 * Math.sin((sceneX + sceneY) * 0.11) + ((sceneX * 7919 + sceneY * 104729) % 17) * 0.02;
+                        water[y * rect.width + x] = value > 0.4;
+                    }
+                }
+                return water;
+            }
+        };
+        final FubScapeMWaterRegions regions =
+                FubScapeMWaterRegions.label(width, height, FubScapeMWaterRegions.DEFAULT_STRIPE_HEIGHT, source, false,
+                                            ProgressMonitor.NULL);
+        final FubScapeMWaterRegions outOfCoreRegions =
+                FubScapeMWaterRegions.label(width, height, FubScapeMWaterRegions.DEFAULT_STRIPE_HEIGHT, source, true,
+                                            ProgressMonitor.NULL);
+
+        final FubScapeMWaterRegions singleStripeRegions =
+                FubScapeMWaterRegions.label(width, height, height, source, false, ProgressMonitor.NULL);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(singleStripeRegions.getRegionSize(x, y), regions.getRegionSize(x, y));
+                assertEquals(singleStripeRegions.getRegionSize(x, y), outOfCoreRegions.getRegionSize(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testBlockLabellingAgainstFullResolution() throws Exception {
+        // synthetic full resolution scene with water bodies of all sizes, labelled on an RR-equivalent grid
+        final int width = 801;
+        final int height = 1000;
+        final int stripeHeight = 64;
+        final int blockSize = 4;
+        final int minimumRegionSize = 5333;
+        final boolean[] water = new boolean[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final double value = Math.sin(x * 0.011) * Math.cos(y * 0.009) + 0.5 * Math.sin(x * 0.05 + y * 0.03) *
+                        Math.cos(y * 0.06 - x * 0.02);
+                water[y * width + x] = value > 0.6;
+            }
+        }
+        final ArraySource source = new ArraySource(water, width);
+
+        final ByteBuffer expectedClasses =
+                FubScapeMWaterRegions.label(width, height, stripeHeight, source, false, ProgressMonitor.NULL).
+                        classifyRegions(minimumRegionSize);
+
+        final int gridWidth = (width - 1) / blockSize + 1;
+        final int gridHeight = (height - 1) / blockSize + 1;
+        final ByteBuffer blockClasses =
+                FubScapeMWaterRegions.label(gridWidth, gridHeight, stripeHeight,
+                                            FubScapeMWaterRegions.createBlockSource(source, blockSize, width, height),
+                                            false, ProgressMonitor.NULL).
+                        classifyRegions((minimumRegionSize + blockSize * blockSize - 1) / (blockSize * blockSize));
+
+        int numWater = 0;
+        int numSmall = 0;
+        int numAgreeing = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (water[y * width + x]) {
+                    numWater++;
+                    if (expectedClasses.get(y * width + x) == FubScapeMWaterRegions.SMALL_REGION) {
+                        numSmall++;
+                    }
+                    final byte blockClass = FubScapeMWaterRegions.getWaterPixelClass(blockClasses, gridWidth,
+                                                                                     gridHeight, x / blockSize,
+                                                                                     y / blockSize);
+                    if (blockClass == expectedClasses.get(y * width + x)) {
+                        numAgreeing++;
+                    }
+                }
+            }
+        }
+        // both large and small regions are present
+        assertTrue(numSmall > 0 && numSmall < numWater);
+        assertTrue((double) numAgreeing / numWater > 0.95);
+    }
+
+    @Test
+    public void testLabelInterrupted() throws Exception {
+        final boolean[] water = new boolean[100];
+        Thread.currentThread().interrupt();
+        try {
+            FubScapeMWaterRegions.label(10, 10, 2, new ArraySource(water, 10), false, ProgressMonitor.NULL);
+            fail("InterruptedException expected");
+        } catch (InterruptedException expected) {
+            assertFalse(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private static int[] getRegionSizesByFloodFill(boolean[] water, int width, int height) {
+        final int[] sizes = new int[water.length];
+        final boolean[] visited = new boolean[water.length];
+        final ArrayDeque<Integer> queue = new ArrayDeque<>();
+        final ArrayDeque<Integer> region = new ArrayDeque<>();
+        for (int start = 0; start < water.length; start++) {
+            if (water[start] && !visited[start]) {
+                visited[start] = true;
+                queue.add(start);
+                while (!queue.isEmpty()) {
+                    final int pixel = queue.poll();
+                    region.add(pixel);
+                    final int x = pixel % width;
+                    final int y = pixel / width;
+                    final int[] neighbours = {
+                            x > 0 ? pixel - 1 : -1,
+                            x < width - 1 ? pixel + 1 : -1,
+                            y > 0 ? pixel - width : -1,
+                            y < height - 1 ? pixel + width : -1
+                    };
+                    for (int neighbour : neighbours) {
+                        if (neighbour >= 0 && water[neighbour] && !visited[neighbour]) {
+                            visited[neighbour] = true;
+                            queue.add(neighbour);
+                        }
+                    }
+                }
+                final int size = region.size();
+                for (int pixel : region) {
+                    sizes[pixel] = size;
+                }
+                region.clear();
+            }
+        }
+        return sizes;
+    }
+
+    private static class ArraySource implements FubScapeMWaterRegions.WaterMaskSource {
+
+        private final boolean[] water;
+        private final int width;
+
+        ArraySource(boolean[] water, int width) {
+            this.water = water;
+            this.width = width;
+        }
+
+        @Override
+        public boolean[] getWaterMask(Rectangle rect) {
+            final boolean[] mask = new boolean[rect.width * rect.height];
+            for (int y = 0; y < rect.height; y++) {
+                System.arraycopy(water, (rect.y + y) * width + rect.x, mask, y * rect.width, rect.width);
+            }
+            return mask;
+        }
+    }
+}
@@ -2,9 +2,12 @@ package org.esa.s3tbx.scapem.math;
 
 import org.apache.commons.math3.analysis.solvers.BrentSolver;
 import org.esa.s3tbx.scapem.operator.WaterVapourFunction;
+import org.esa.s3tbx.scapem.operator.WaterVapourTableInversion;
 import org.junit.Test;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * Tests for use of Water vapour function
@@ -36,6 +39,48 @@ public class WaterVapourFunctionTest {
         assertEquals(1.96476, result, ftol);
     }
 
+    @Test
+    public void testTableInversionAgreesWithBrent() throws Exception {
+        final double[] wvGr2 = new double[]{0.301, 1.0, 1.5, 2.0, 2.7, 4.999};
+        final double wvLower = 0.302;
+        final double wvUpper = 4.998;
+        final double ftol = 1.0e-4;
+
+        WaterVapourFunction wvFunction = new WaterVapourFunction();
+        wvFunction.setWvGr2(wvGr2);
+        wvFunction.setParAtmH(initParAtmH());
+        wvFunction.setReflPix(new double[]{0.358543, 0.365387});
+
+        WaterVapourTableInversion tableInversion =
+                new WaterVapourTableInversion(wvFunction, wvGr2, wvLower, wvUpper, false);
+        WaterVapourTableInversion newtonInversion =
+                new WaterVapourTableInversion(wvFunction, wvGr2, wvLower, wvUpper, true);
+        BrentSolver brentSolver = new BrentSolver(ftol);
+
+        double maxDiffTable = 0.0;
+        double maxDiffNewton = 0.0;
+        for (double merisRatio = 0.55; merisRatio <= 0.80; merisRatio += 0.01) {
+            wvFunction.setMerisRatio(merisRatio);
+            final double brentResult = brentSolver.solve(10000, wvFunction, wvLower, wvUpper);
+
+            assertTrue(tableInversion.retrieve());
+            maxDiffTable = Math.max(maxDiffTable, Math.abs(tableInversion.getWv() - brentResult));
+            assertTrue(newtonInversion.retrieve());
+            maxDiffNewton = Math.max(maxDiffNewton, Math.abs(newtonInversion.getWv() - brentResult));
+        }
+        assertEquals(0.0, maxDiffTable, 0.01);
+        assertEquals(0.0, maxDiffNewton, 2.0 * ftol);
+
+        // the IDL case
+        wvFunction.setMerisRatio(0.64714217);
+        assertTrue(newtonInversion.retrieve());
+        assertEquals(1.96476, newtonInversion.getWv(), ftol);
+
+        // no root in valid range: Brent would throw NoBracketingException
+        wvFunction.setMerisRatio(0.1);
+        assertFalse(newtonInversion.retrieve());
+    }
+
     private double[][][] initParAtmH() {
 
         final double[][] lpwSp = new double[][]{
@@ -1,5 +1,10 @@
 package org.esa.s3tbx.scapem.operator;
 
+import Stats.LinFit;
+import org.esa.s3tbx.scapem.ScapeMConstants;
+import org.esa.s3tbx.scapem.io.LutAccess;
+import org.junit.Test;
+
 import static org.junit.Assert.*;
 
 /**
@@ -7,4 +12,76 @@ import static org.junit.Assert.*;
  */
 public class ScapeMAlgorithmTest {
 
-}
\ No newline at end of file
+    @Test
+    public void testCellAot550WithPrecomputedFits() throws Exception {
+        final ScapeMLut scapeMLut = new ScapeMLut(LutAccess.getAtmParmsLookupTable());
+        final int tileSize = ScapeMConstants.FR_PIXELS_PER_CELL;
+
+        final double[][] visibility = new double[tileSize][tileSize];
+        final double[][] hsurf = new double[tileSize][tileSize];
+        for (int x = 0; x < tileSize; x++) {
+            for (int y = 0; y < tileSize; y++) {
+                visibility[x][y] = scapeMLut.getVisMin() + (scapeMLut.getVisMax() - scapeMLut.getVisMin()) * x / tileSize;
+                hsurf[x][y] = scapeMLut.getHsfMin() + (scapeMLut.getHsfMax() - scapeMLut.getHsfMin()) * y / tileSize;
+            }
+        }
+
+        final double[][] expected = new double[tileSize][tileSize];
+        for (int x = 0; x < tileSize; x++) {
+            for (int y = 0; y < tileSize; y++) {
+                expected[x][y] = getCellAot550WithFitPerPixel(visibility[x][y], hsurf[x][y], scapeMLut);
+            }
+        }
+
+        double maxFitDeviation = 0.0;
+        for (int x = 0; x < tileSize; x++) {
+            for (int y = 0; y < tileSize; y++) {
+                final double aot550 = ScapeMAlgorithm.getCellAot550(visibility[x][y], hsurf[x][y], scapeMLut, false);
+                maxFitDeviation = Math.max(maxFitDeviation, Math.abs(aot550 - expected[x][y]));
+            }
+        }
+
+        double maxTableDeviation = 0.0;
+        for (int x = 0; x < tileSize; x++) {
+            for (int y = 0; y < tileSize; y++) {
+                final double aot550 = ScapeMAlgorithm.getCellAot550(visibility[x][y], hsurf[x][y], scapeMLut, true);
+                maxTableDeviation = Math.max(maxTableDeviation, Math.abs(aot550 - expected[x][y]) / expected[x][y]);
+            }
+        }
+
+        assertEquals(0.0, maxFitDeviation, 0.0);
+        assertEquals(0.0, maxTableDeviation, 1.e-5);
+    }
+
+    // the conversion as done before the fits were precomputed in the LUT
+    private static double getCellAot550WithFitPerPixel(double visibility, double hsurf, ScapeMLut scapeMLut) {
+        final double lnVis = Math.log(visibility);
+        final double[] hsfArrayLUT = scapeMLut.getHsfArrayLUT();
+        final double[] lnVisGr = new double[scapeMLut.getVisArrayLUT().length];
+        final double[] lnAotGr = new double[scapeMLut.getVisArrayLUT().length];
+        for (int i = 0; i < lnVisGr.length; i++) {
+            lnVisGr[i] = Math.log(scapeMLut.getVisArrayLUT()[i]);
+        }
+        final double[][] aCoeff = new double[hsfArrayLUT.length][2];
+        for (int i = 0; i < hsfArrayLUT.length; i++) {
+            for (int j = 0; j < lnVisGr.length; j++) {
+                lnAotGr[j] = Math.log(ScapeMConstants.AOT_GRID[i][j]);
+            }
+            final LinFit linFit = new LinFit(lnVisGr, lnAotGr, lnVisGr.length);
+            aCoeff[i][0] = linFit.getA();
+            aCoeff[i][1] = linFit.getB();
+        }
+
+        int hsfIndexToUse = -1;
+        for (int i = 0; i < hsfArrayLUT.length; i++) {
+            if (hsurf >= hsfArrayLUT[i]) {
+                hsfIndexToUse = i;
+            }
+        }
+        final double hsp = (hsurf - hsfArrayLUT[hsfIndexToUse]) /
+                (hsfArrayLUT[hsfIndexToUse + 1] - hsfArrayLUT[hsfIndexToUse]);
+        final double aotTmp1 = Math.exp(aCoeff[hsfIndexToUse][0] + aCoeff[hsfIndexToUse][1] * lnVis);
+        final double aotTmp2 = Math.exp(aCoeff[hsfIndexToUse + 1][0] + aCoeff[hsfIndexToUse + 1][1] * lnVis);
+        return aotTmp1 + (aotTmp2 - aotTmp1) * hsp;
+    }
+}
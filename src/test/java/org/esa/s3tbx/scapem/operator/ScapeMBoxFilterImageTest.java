@@ -0,0 +1,141 @@
+package org.esa.s3tbx.scapem.operator;
+
+import com.bc.ceres.glevel.support.DefaultMultiLevelModel;
+import org.esa.snap.core.image.ResolutionLevel;
+import org.esa.snap.core.image.SingleBandedOpImage;
+import org.junit.Test;
+
+import javax.media.jai.BorderExtender;
+import javax.media.jai.JAI;
+import javax.media.jai.KernelJAI;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.operator.ConvolveDescriptor;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+
+public class ScapeMBoxFilterImageTest {
+
+    @Test
+    public void testBoxFilterAgainstJaiConvolution() {
+        final int width = 100;
+        final int height = 70;
+        // even and odd kernel sizes, smaller and larger than the tile size
+        for (int kernelSize : new int[]{1, 4, 5, 16, 25}) {
+            final RenderedImage sourceImage = new TestImage(width, height, new Dimension(16, 16));
+            final BorderExtender borderExtender = BorderExtender.createInstance(BorderExtender.BORDER_COPY);
+
+            final Raster expected = createJaiConvolution(sourceImage, kernelSize, borderExtender).getData();
+            final Raster actual = new ScapeMBoxFilterImage(sourceImage, kernelSize, borderExtender).getData();
+
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assertEquals(expected.getSampleFloat(x, y, 0), actual.getSampleFloat(x, y, 0), 1e-4);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCellGridSmoothingAgainstBoxFilter() {
+        final int width = 100;
+        final int height = 70;
+        final int cellSize = 16;
+        final Random random = new Random(7);
+        final float[][] cellValues = new float[(width - 1) / cellSize + 1][(height - 1) / cellSize + 1];
+        for (float[] cellColumn : cellValues) {
+            for (int y = 0; y < cellColumn.length; y++) {
+                cellColumn[y] = 10.0f + 40.0f * random.nextFloat();
+            }
+        }
+        final ScapeMGapFill.ScapeMGapFilledImage cellGridImage =
+                new ScapeMGapFill.ScapeMGapFilledImage(DataBuffer.TYPE_FLOAT, width, height,
+                                                       new Dimension(cellSize, cellSize), null,
+                                                       ResolutionLevel.MAXRES, cellValues);
+        final BorderExtender borderExtender = BorderExtender.createInstance(BorderExtender.BORDER_COPY);
+        for (int kernelSize : new int[]{7, cellSize, 40}) {
+            final Raster expected = new ScapeMBoxFilterImage(cellGridImage, kernelSize, borderExtender).getData();
+            // any tile layout
+            for (int tileSize : new int[]{cellSize, 25, 100}) {
+                final Raster actual = new ScapeMCellGridSmoothingImage(cellGridImage, kernelSize,
+                                                                       new Dimension(tileSize, tileSize),
+                                                                       ResolutionLevel.MAXRES).getData();
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        assertEquals(expected.getSampleFloat(x, y, 0), actual.getSampleFloat(x, y, 0), 1e-4);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCellGridSmoothingAtLowerResolutionLevel() {
+        final int width = 100;
+        final int height = 70;
+        final int cellSize = 16;
+        final float[][] cellValues = new float[(width - 1) / cellSize + 1][(height - 1) / cellSize + 1];
+        for (int x = 0; x < cellValues.length; x++) {
+            for (int y = 0; y < cellValues[x].length; y++) {
+                cellValues[x][y] = 10.0f + 3.0f * x + 7.0f * y;
+            }
+        }
+        final ScapeMGapFill.ScapeMGapFilledImage cellGridImage =
+                new ScapeMGapFill.ScapeMGapFilledImage(DataBuffer.TYPE_FLOAT, width, height,
+                                                       new Dimension(cellSize, cellSize), null,
+                                                       ResolutionLevel.MAXRES, cellValues);
+        final DefaultMultiLevelModel model = new DefaultMultiLevelModel(2, new AffineTransform(), width, height);
+        final Dimension tileSize = new Dimension(cellSize, cellSize);
+        final Raster level0 = new ScapeMCellGridSmoothingImage(cellGridImage, cellSize, tileSize,
+                                                               ResolutionLevel.MAXRES).getData();
+        final Raster level1 = new ScapeMCellGridSmoothingImage(cellGridImage, cellSize, tileSize,
+                                                               ResolutionLevel.create(model, 1)).getData();
+
+        assertEquals(width / 2, level1.getWidth());
+        assertEquals(height / 2, level1.getHeight());
+        for (int y = 0; y < level1.getHeight(); y++) {
+            for (int x = 0; x < level1.getWidth(); x++) {
+                assertEquals(level0.getSampleFloat(2 * x, 2 * y, 0), level1.getSampleFloat(x, y, 0), 1e-4);
+            }
+        }
+    }
+
+    private static RenderedOp createJaiConvolution(RenderedImage sourceImage, int kernelSize,
+                                                   BorderExtender borderExtender) {
+        float[] kernelMatrix = new float[kernelSize * kernelSize];
+        for (int k = 0; k < kernelMatrix.length; k++) {
+            kernelMatrix[k] = 1.0f / (kernelSize * kernelSize);
+        }
+        KernelJAI kernel = new KernelJAI(kernelSize, kernelSize, kernelMatrix);
+        RenderingHints hints = new RenderingHints(JAI.KEY_BORDER_EXTENDER, borderExtender);
+        return ConvolveDescriptor.create(sourceImage, kernel, hints);
+    }
+
+    private static class TestImage extends SingleBandedOpImage {
+
+        TestImage(int width, int height, Dimension tileSize) {
+            super(DataBuffer.TYPE_FLOAT, width, height, tileSize, null, ResolutionLevel.MAXRES);
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            float[] elems = new float[destRect.width * destRect.height];
+            int index = 0;
+            for (int y = destRect.y; y < destRect.height + destRect.y; y++) {
+                for (int x = destRect.x; x < destRect.width + destRect.x; x++) {
+                    elems[index++] = (float) (20.0 + 5.0 * Math.sin(0.37 * x) * Math.cos(0.11 * y) + (x * 31 + y * 17) % 13);
+                }
+            }
+            dest.setDataElements(destRect.x, destRect.y, destRect.width, destRect.height, elems);
+        }
+    }
+}
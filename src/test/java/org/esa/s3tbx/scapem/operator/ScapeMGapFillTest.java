@@ -16,9 +16,11 @@ import java.awt.image.DataBuffer;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.Map;
+import java.util.Random;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
 
 public class ScapeMGapFillTest {
 
@@ -88,6 +90,73 @@ public class ScapeMGapFillTest {
         assertEquals((float) 39 / 7, ScapeMGapFill.interpolateAtCornerOrBorder(3, 3, cellSamples, 1, 2, noDataValue), 1e-8);
     }
 
+    @Test
+    public void testFillCellGridWithLargeGap() {
+        double noDataValue = -1;
+        float[][] cellSamples = new float[7][7];
+        for (int x = 0; x < 7; x++) {
+            for (int y = 0; y < 7; y++) {
+                final boolean isGap = x >= 1 && x <= 5 && y >= 1 && y <= 5;
+                cellSamples[x][y] = isGap ? -1 : 2;
+            }
+        }
+        cellSamples[0][0] = 4;
+        final float[][] filled = ScapeMGapFill.fillCellGrid(cellSamples, noDataValue, 10);
+
+        // centre cell: no valid cell within 2 cells, filled from the 3-cell neighbourhood
+        assertEquals((float) 50 / 24, filled[3][3], 1e-6);
+        // cell next to the gap border: mean over the 2-cell neighbourhood
+        assertEquals((float) 12 / 5, filled[1][1], 1e-6);
+        assertEquals(4, filled[0][0], 1e-8);
+        assertEquals(2, filled[6][6], 1e-8);
+    }
+
+    @Test
+    public void testFillCellGridPullPush() {
+        double noDataValue = -1;
+        float[][] cellSamples = {{1, 2, 3}, {4, -1, 6}, {7, 8, 9}};
+        float[][] filled = ScapeMGapFill.fillCellGridPullPush(cellSamples, noDataValue);
+        assertEquals(5, filled[1][1], 0.5);
+        assertEquals(1, filled[0][0], 1e-8);
+        assertEquals(9, filled[2][2], 1e-8);
+
+        cellSamples = new float[][]{{-1, -1}, {-1, -1}};
+        filled = ScapeMGapFill.fillCellGridPullPush(cellSamples, noDataValue);
+        assertEquals(-1, filled[1][1], 1e-8);
+    }
+
+    @Test
+    public void testFillCellGridPullPushOnSyntheticGaps() {
+        final double noDataValue = -1;
+        final int numberOfCellColumns = 40;
+        final int numberOfCellRows = 50;
+        final Random random = new Random(42);
+        for (int gapPercentage = 10; gapPercentage <= 90; gapPercentage += 20) {
+            final float[][] cellSamples = new float[numberOfCellColumns][numberOfCellRows];
+            for (int x = 0; x < numberOfCellColumns; x++) {
+                for (int y = 0; y < numberOfCellRows; y++) {
+                    if (random.nextInt(100) < gapPercentage) {
+                        cellSamples[x][y] = (float) noDataValue;
+                    } else {
+                        cellSamples[x][y] = 20.0f + 0.5f * x + 0.25f * y;
+                    }
+                }
+            }
+
+            final float[][] pullPushFilled = ScapeMGapFill.fillCellGridPullPush(cellSamples, noDataValue);
+            for (int x = 0; x < numberOfCellColumns; x++) {
+                for (int y = 0; y < numberOfCellRows; y++) {
+                    if (cellSamples[x][y] != noDataValue) {
+                        assertEquals(cellSamples[x][y], pullPushFilled[x][y], 1e-8);
+                    } else {
+                        // values of a linear field are interpolated within its range
+                        assertTrue(pullPushFilled[x][y] >= 20.0f && pullPushFilled[x][y] <= 52.25f);
+                    }
+                }
+            }
+        }
+    }
+
     @Test
     public void testScapeMGapFill() throws IOException {
         final int pixelsPerCell = 2;
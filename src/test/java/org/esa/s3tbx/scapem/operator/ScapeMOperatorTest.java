@@ -17,6 +17,7 @@
 package org.esa.s3tbx.scapem.operator;
 
 import org.esa.s3tbx.processor.rad2refl.Rad2ReflOp;
+import org.esa.s3tbx.scapem.ScapeMConstants;
 import org.esa.snap.core.dataio.ProductIO;
 import org.esa.snap.core.datamodel.Band;
 import org.esa.snap.core.datamodel.Product;
@@ -25,10 +26,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.awt.image.Raster;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -107,7 +112,92 @@ public class ScapeMOperatorTest {
         assertEquals(0.6594650149345398, aot_550.getSampleFloat(100, 40), 1e-8);
     }
 
+    @Test
+    public void testScapeMOperatorWithOutputBandSubset() throws Exception {
+        final HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("outputBands", new String[]{"refl_5"});
+        final Product product = prepareTestProduct(parameters);
+
+        assertTrue(product.containsBand("refl_5"));
+        assertFalse(product.containsBand("refl_1"));
+        assertFalse(product.containsBand("refl_13"));
+        assertFalse(product.containsBand("water_vapour"));
+
+        // same values as with all bands
+        final Band refl_5 = product.getBand("refl_5");
+        assertEquals(0.13486453890800476, refl_5.getSampleFloat(160, 0), 1e-8);
+        assertEquals(0.16821929812431335, refl_5.getSampleFloat(160, 80), 1e-8);
+        assertEquals(0.13388971984386444, refl_5.getSampleFloat(120, 50), 1e-8);
+        assertEquals(0.10810120403766632, refl_5.getSampleFloat(100, 40), 1e-8);
+    }
+
+    @Test
+    public void testScapeMOperatorWithParallelAcRows() throws Exception {
+        final HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("parallelAcRows", true);
+        final Product product = prepareTestProduct(parameters);
+
+        // same values as sequential processing
+        final Band refl_5 = product.getBand("refl_5");
+        assertEquals(0.13486453890800476, refl_5.getSampleFloat(160, 0), 1e-8);
+        assertEquals(0.16821929812431335, refl_5.getSampleFloat(160, 80), 1e-8);
+        assertEquals(0.13388971984386444, refl_5.getSampleFloat(120, 50), 1e-8);
+        assertEquals(0.10810120403766632, refl_5.getSampleFloat(100, 40), 1e-8);
+    }
+
+    @Test
+    public void testScapeMOperatorWithFusedAotAndAc() throws Exception {
+        final String[] comparedBands = {ScapeMConstants.AOT550_BAND_NAME, "water_vapour", "refl_5", "refl_13"};
+
+        final Product separateProduct = prepareTestProduct();
+        final Map<String, float[]> separateData = readBands(separateProduct, comparedBands);
+
+        final HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("fuseAotAndAc", true);
+        final Product fusedProduct = prepareTestProduct(parameters);
+        final Map<String, float[]> fusedData = readBands(fusedProduct, comparedBands);
+
+        for (String bandName : comparedBands) {
+            assertArrayEquals(bandName, separateData.get(bandName), fusedData.get(bandName), 0.0f);
+        }
+    }
+
+    @Test
+    public void testScapeMOperatorWithLeanCloudClassification() throws Exception {
+        final String[] comparedBands = {"cloud_classif_flags"};
+
+        final HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("useRad2Refl", true);
+        final float[] rad2ReflFlags = readBands(prepareTestProduct(parameters), comparedBands).get(comparedBands[0]);
+
+        parameters.put("useRad2Refl", false);
+        final float[] leanFlags = readBands(prepareTestProduct(parameters), comparedBands).get(comparedBands[0]);
+
+        int numDifferentPixels = 0;
+        for (int i = 0; i < rad2ReflFlags.length; i++) {
+            if (rad2ReflFlags[i] != leanFlags[i]) {
+                numDifferentPixels++;
+            }
+        }
+        // only rounding differences at the thresholds
+        assertTrue(numDifferentPixels <= rad2ReflFlags.length / 100);
+    }
+
+    private static Map<String, float[]> readBands(Product product, String[] bandNames) {
+        final Map<String, float[]> bandData = new HashMap<>();
+        for (String bandName : bandNames) {
+            final Raster raster = product.getBand(bandName).getSourceImage().getData();
+            bandData.put(bandName, raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), 0, (float[]) null));
+        }
+        product.dispose();
+        return bandData;
+    }
+
     private Product prepareTestProduct() throws IOException {
+        return prepareTestProduct(new HashMap<String, Object>());
+    }
+
+    private Product prepareTestProduct(HashMap<String, Object> extraParameters) throws IOException {
         final String filePath = ScapeMOperatorTest.class.getResource("source_product.dim").getFile();
         final Product sourceProduct = ProductIO.readProduct(filePath);
         final HashMap<String, Object> parameters = new HashMap<>();
@@ -120,6 +210,7 @@ public class ScapeMOperatorTest {
         parameters.put("skipGapFilling", false);
         parameters.put("skipVisibilitySmoothing", false);
         parameters.put("outputRhoToa", false);
+        parameters.putAll(extraParameters);
 
         return GPF.createProduct("snap.scapeM", parameters, sourceProduct);
     }
@@ -0,0 +1,101 @@
+package org.esa.s3tbx.scapem.operator;
+
+import org.esa.s3tbx.processor.rad2refl.Rad2ReflOp;
+import org.esa.snap.core.dataio.ProductIO;
+import org.esa.snap.core.datamodel.Band;
+import org.esa.snap.core.datamodel.Product;
+import org.esa.snap.core.gpf.GPF;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the test product with each processing profile and checks the deviations from the REFERENCE profile.
+ *
+ * @author agent
+ */
+public class ScapeMProcessingProfileTest {
+
+    private static final String[] COMPARED_BANDS = {"refl_1", "refl_5", "refl_9", "refl_13", "water_vapour", "AOT_550"};
+
+    // accepted maximum and mean absolute deviations from REFERENCE, per band in the order of COMPARED_BANDS
+    private static final double[] BALANCED_MAX_DEVIATIONS = {0.01, 0.01, 0.01, 0.01, 0.1, 0.02};
+    private static final double[] BALANCED_MEAN_DEVIATIONS = {0.001, 0.001, 0.001, 0.001, 0.01, 0.002};
+    private static final double[] FAST_MAX_DEVIATIONS = {0.05, 0.05, 0.05, 0.05, 0.5, 0.1};
+    private static final double[] FAST_MEAN_DEVIATIONS = {0.005, 0.005, 0.005, 0.005, 0.05, 0.02};
+
+    final ScapeMOp.Spi scapeMOp = new ScapeMOp.Spi();
+    final Rad2ReflOp.Spi rad2Ref = new Rad2ReflOp.Spi();
+    final ScapeMSmoothSimpleKernelOp.Spi simpleKernelOp = new ScapeMSmoothSimpleKernelOp.Spi();
+
+    @Before
+    public void setUp() throws Exception {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().addOperatorSpi(scapeMOp);
+        GPF.getDefaultInstance().getOperatorSpiRegistry().addOperatorSpi(rad2Ref);
+        GPF.getDefaultInstance().getOperatorSpiRegistry().addOperatorSpi(simpleKernelOp);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().removeOperatorSpi(scapeMOp);
+        GPF.getDefaultInstance().getOperatorSpiRegistry().removeOperatorSpi(rad2Ref);
+        GPF.getDefaultInstance().getOperatorSpiRegistry().removeOperatorSpi(simpleKernelOp);
+    }
+
+    @Test
+    public void testBalancedProfileAgainstReference() throws Exception {
+        assertDeviations(computeBands(ScapeMProcessingProfile.REFERENCE),
+                         computeBands(ScapeMProcessingProfile.BALANCED),
+                         BALANCED_MAX_DEVIATIONS, BALANCED_MEAN_DEVIATIONS);
+    }
+
+    @Test
+    public void testFastProfileAgainstReference() throws Exception {
+        assertDeviations(computeBands(ScapeMProcessingProfile.REFERENCE),
+                         computeBands(ScapeMProcessingProfile.FAST),
+                         FAST_MAX_DEVIATIONS, FAST_MEAN_DEVIATIONS);
+    }
+
+    private static void assertDeviations(Map<String, float[]> reference, Map<String, float[]> result,
+                                         double[] maxDeviations, double[] meanDeviations) {
+        for (int bandIndex = 0; bandIndex < COMPARED_BANDS.length; bandIndex++) {
+            final String bandName = COMPARED_BANDS[bandIndex];
+            final float[] expected = reference.get(bandName);
+            final float[] actual = result.get(bandName);
+            assertEquals(expected.length, actual.length);
+
+            double sumDeviation = 0.0;
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(bandName + " at " + i, expected[i], actual[i], maxDeviations[bandIndex]);
+                sumDeviation += Math.abs(actual[i] - expected[i]);
+            }
+            assertEquals(bandName + " mean", 0.0, sumDeviation / expected.length, meanDeviations[bandIndex]);
+        }
+    }
+
+    private Map<String, float[]> computeBands(ScapeMProcessingProfile profile) throws IOException {
+        final String filePath = ScapeMOperatorTest.class.getResource("source_product.dim").getFile();
+        final Product sourceProduct = ProductIO.readProduct(filePath);
+        final HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("processingProfile", profile);
+        final Product product = GPF.createProduct("snap.scapeM", parameters, sourceProduct);
+
+        final Map<String, float[]> bandData = new HashMap<>();
+        for (String bandName : COMPARED_BANDS) {
+            assertTrue(product.containsBand(bandName));
+            final Band band = product.getBand(bandName);
+            final Raster raster = band.getSourceImage().getData();
+            bandData.put(bandName, raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), 0, (float[]) null));
+        }
+        product.dispose();
+        return bandData;
+    }
+}